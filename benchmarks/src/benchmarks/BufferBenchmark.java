@@ -0,0 +1,98 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-range work done on the client: reading a range of a local file into a buffer, copying it,
+ * scanning it for zeros and hashing it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BufferBenchmark {
+
+    @Param({ "65536", "4194304" })
+    public int bufferSize;
+
+    private byte[] data;
+    private byte[] zeros;
+    private byte[] target;
+    private File file;
+    private FileChannel channel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        this.data = new byte[this.bufferSize];
+        new Random(42).nextBytes(this.data);
+        this.zeros = new byte[this.bufferSize];
+        this.target = new byte[this.bufferSize];
+        this.file = Samples.createTempLocalFile("bench", ".tmp", this.bufferSize);
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.channel.close();
+        this.file.delete();
+    }
+
+    @Benchmark
+    public byte[] copy() {
+        System.arraycopy(this.data, 0, this.target, 0, this.bufferSize);
+        return this.target;
+    }
+
+    @Benchmark
+    public byte[] readFully() throws Throwable {
+        Samples.readFully(this.channel, 0, this.target, this.bufferSize);
+        return this.target;
+    }
+
+    /**
+     * Scans a buffer of zeros, which has to be read to the end.
+     */
+    @Benchmark
+    public boolean isZero() throws Throwable {
+        return Samples.isZero(this.zeros, 0, this.bufferSize);
+    }
+
+    @Benchmark
+    public String hash() throws Throwable {
+        return Samples.hash(this.data, this.bufferSize);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package benchmarks;
+
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.CloudFileClient;
+import com.microsoft.azure.storage.file.FileRange;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Calls into the sample classes.
+ *
+ * JMH only runs benchmarks declared in a named package, and a named package cannot refer to the sample classes,
+ * which live in the unnamed package. Their methods are therefore looked up once and held in static final method
+ * handles, which the JIT treats as constants, so calling through them costs the same as a direct call.
+ */
+final class Samples {
+
+    private static final MethodHandle CREATE_RANDOM_NAME = method("DataGenerator", "createRandomName", String.class);
+    private static final MethodHandle CREATE_TEMP_LOCAL_FILE = method("DataGenerator", "createTempLocalFile", String.class, String.class, int.class);
+    private static final MethodHandle PLAN_RANGES = method("ParallelFileTransfer", "planRanges", long.class, int.class);
+    private static final MethodHandle IS_ZERO = method("ParallelFileTransfer", "isZero", byte[].class, int.class, int.class);
+    private static final MethodHandle READ_FULLY = method("ParallelFileTransfer", "readFully", FileChannel.class, long.class, byte[].class, int.class);
+    private static final MethodHandle HASH = method("DeltaFileUploader", "hash", byte[].class, int.class);
+    private static final MethodHandle NEW_TRANSFER = constructor("ParallelFileTransfer", int.class, int.class);
+    private static final MethodHandle UPLOAD = method("ParallelFileTransfer", "upload", CloudFile.class, File.class);
+    private static final MethodHandle DOWNLOAD = method("ParallelFileTransfer", "download", CloudFile.class, File.class);
+    private static final Class<?> CONTENT = sampleClass("DataGenerator$Content");
+    private static final Object RANDOM_CONTENT = enumConstant(CONTENT, "RANDOM");
+    private static final MethodHandle NEW_GENERATED_INPUT_STREAM = constructor("GeneratedInputStream", long.class, CONTENT, long.class);
+    private static final MethodHandle NEW_VERIFYING_OUTPUT_STREAM = constructor("VerifyingOutputStream", long.class, CONTENT, long.class);
+    private static final MethodHandle VERIFY = method("VerifyingOutputStream", "verify");
+    private static final MethodHandle START_STAND_IN = method("FileServiceStandIn", "start");
+    private static final MethodHandle CREATE_FILE_CLIENT = method("FileServiceStandIn", "createFileClient");
+
+    private Samples() {
+    }
+
+    static String createRandomName(String namePrefix) throws Throwable {
+        return (String) CREATE_RANDOM_NAME.invokeExact(namePrefix);
+    }
+
+    static File createTempLocalFile(String prefix, String suffix, int bytesToWrite) throws Throwable {
+        return (File) CREATE_TEMP_LOCAL_FILE.invokeExact(prefix, suffix, bytesToWrite);
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<FileRange> planRanges(long length, int rangeSize) throws Throwable {
+        return (List<FileRange>) PLAN_RANGES.invokeExact(length, rangeSize);
+    }
+
+    static boolean isZero(byte[] buffer, int offset, int length) throws Throwable {
+        return (boolean) IS_ZERO.invokeExact(buffer, offset, length);
+    }
+
+    static void readFully(FileChannel channel, long position, byte[] buffer, int length) throws Throwable {
+        READ_FULLY.invokeExact(channel, position, buffer, length);
+    }
+
+    static String hash(byte[] buffer, int length) throws Throwable {
+        return (String) HASH.invokeExact(buffer, length);
+    }
+
+    /**
+     * @return A new ParallelFileTransfer.
+     */
+    static Object newTransfer(int rangeSize, int concurrency) throws Throwable {
+        return (Object) NEW_TRANSFER.invokeExact(rangeSize, concurrency);
+    }
+
+    /**
+     * @return The TransferStatistics of the upload.
+     */
+    static Object upload(Object transfer, CloudFile file, File source) throws Throwable {
+        return (Object) UPLOAD.invokeExact(transfer, file, source);
+    }
+
+    /**
+     * @return The TransferStatistics of the download.
+     */
+    static Object download(Object transfer, CloudFile file, File destination) throws Throwable {
+        return (Object) DOWNLOAD.invokeExact(transfer, file, destination);
+    }
+
+    /**
+     * @return A GeneratedInputStream of random content.
+     */
+    static InputStream generatedInputStream(long length, long seed) throws Throwable {
+        Object stream = (Object) NEW_GENERATED_INPUT_STREAM.invokeExact(length, RANDOM_CONTENT, seed);
+        return (InputStream) stream;
+    }
+
+    /**
+     * @return A VerifyingOutputStream expecting the content of generatedInputStream.
+     */
+    static OutputStream verifyingOutputStream(long length, long seed) throws Throwable {
+        Object stream = (Object) NEW_VERIFYING_OUTPUT_STREAM.invokeExact(length, RANDOM_CONTENT, seed);
+        return (OutputStream) stream;
+    }
+
+    static void verify(OutputStream verifyingOutputStream) throws Throwable {
+        VERIFY.invokeExact((Object) verifyingOutputStream);
+    }
+
+    /**
+     * @return A running FileServiceStandIn.
+     */
+    static AutoCloseable startStandIn() throws Throwable {
+        Object standIn = (Object) START_STAND_IN.invokeExact();
+        return (AutoCloseable) standIn;
+    }
+
+    static CloudFileClient createFileClient(AutoCloseable standIn) throws Throwable {
+        return (CloudFileClient) CREATE_FILE_CLIENT.invokeExact((Object) standIn);
+    }
+
+    private static Class<?> sampleClass(String className) {
+        try {
+            return Class.forName(className);
+        }
+        catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object enumConstant(Class<?> enumClass, String name) {
+        return Enum.valueOf((Class) enumClass, name);
+    }
+
+    /**
+     * Looks up a method of a sample class, with sample class types in its signature erased to Object.
+     */
+    private static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = Class.forName(className).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return erase(MethodHandles.lookup().unreflect(method));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return erase(MethodHandles.lookup().unreflectConstructor(constructor));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle erase(MethodHandle handle) {
+        Class<?>[] parameterTypes = handle.type().parameterArray();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            parameterTypes[i] = erase(parameterTypes[i]);
+        }
+        return handle.asType(MethodType.methodType(erase(handle.type().returnType()), parameterTypes));
+    }
+
+    private static Class<?> erase(Class<?> type) {
+        return type.isPrimitive() || type.isArray() || type.getName().indexOf('.') >= 0 ? type : Object.class;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package benchmarks;
+
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.CloudFileShare;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the upload and download paths of FileBasics against an in-process FileServiceStandIn, so the results
+ * reflect the client and not the network: the SDK's own uploadFromFile and downloadToFile, and the parallel
+ * ranged transfers of ParallelFileTransfer. The generated and verified variants stream content without touching
+ * the disk, which isolates the cost of the client and the stand-in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransferBenchmark {
+
+    @Param({ "1048576", "16777216" })
+    public int fileSize;
+
+    @Param({ "4194304" })
+    public int rangeSize;
+
+    @Param({ "8" })
+    public int concurrency;
+
+    private AutoCloseable standIn;
+    private CloudFileShare share;
+    private CloudFile uploaded;
+    private CloudFile downloaded;
+    private CloudFile generated;
+    private File source;
+    private File destination;
+    private Object transfer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        this.standIn = Samples.startStandIn();
+        this.share = Samples.createFileClient(this.standIn).getShareReference("benchmarks");
+        this.share.create();
+        this.uploaded = this.share.getRootDirectoryReference().getFileReference("uploaded");
+        this.downloaded = this.share.getRootDirectoryReference().getFileReference("downloaded");
+
+        this.source = Samples.createTempLocalFile("bench", ".tmp", this.fileSize);
+        this.destination = File.createTempFile("bench", ".tmp");
+        this.downloaded.uploadFromFile(this.source.getAbsolutePath());
+        this.generated = this.share.getRootDirectoryReference().getFileReference("generated");
+        this.generated.upload(Samples.generatedInputStream(this.fileSize, 42), this.fileSize);
+        this.transfer = Samples.newTransfer(this.rangeSize, this.concurrency);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.standIn.close();
+        this.source.delete();
+        this.destination.delete();
+    }
+
+    @Benchmark
+    public CloudFile uploadFromFile() throws Exception {
+        this.uploaded.uploadFromFile(this.source.getAbsolutePath());
+        return this.uploaded;
+    }
+
+    @Benchmark
+    public Object parallelUpload() throws Throwable {
+        return Samples.upload(this.transfer, this.uploaded, this.source);
+    }
+
+    @Benchmark
+    public CloudFile uploadGenerated() throws Throwable {
+        this.uploaded.upload(Samples.generatedInputStream(this.fileSize, 42), this.fileSize);
+        return this.uploaded;
+    }
+
+    @Benchmark
+    public File downloadToFile() throws Exception {
+        this.downloaded.downloadToFile(this.destination.getAbsolutePath());
+        return this.destination;
+    }
+
+    @Benchmark
+    public Object parallelDownload() throws Throwable {
+        return Samples.download(this.transfer, this.downloaded, this.destination);
+    }
+
+    @Benchmark
+    public OutputStream downloadVerified() throws Throwable {
+        OutputStream sink = Samples.verifyingOutputStream(this.fileSize, 42);
+        this.generated.download(sink);
+        Samples.verify(sink);
+        return sink;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor the async file operations run on by default.
+ *
+ * This is the Java 21 version of the class, packaged in META-INF/versions/21 of the multi-release jar. It runs every
+ * operation on its own virtual thread, which parks rather than holding an operating system thread while it waits for
+ * the service, so thousands of operations can be in flight for little memory.
+ */
+final class AsyncExecutors {
+
+    /**
+     * The number of platform threads of the default executor before Java 21. Unused by this version.
+     */
+    static final int DEFAULT_PLATFORM_THREADS = 64;
+
+    private AsyncExecutors() {
+    }
+
+    /**
+     * @return A new executor for blocking service calls, which the caller must shut down.
+     */
+    static ExecutorService newExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("async-file-operations-", 1).factory());
+    }
+
+    /**
+     * @return Whether the executors created run each task on its own virtual thread.
+     */
+    static boolean usesVirtualThreads() {
+        return true;
+    }
+}
@@ -0,0 +1,446 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.ResponseReceivedEvent;
+import com.microsoft.azure.storage.SendingRequestEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import com.microsoft.azure.storage.file.CloudFileClient;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent operations against a service endpoint, adapting the limit to how the service copes.
+ *
+ * The limit follows additive increase, multiplicative decrease. Every successful response grows it by 1/limit, so it
+ * rises by about one per round trip while latency stays close to its baseline. A ServerBusy or OperationTimedOut
+ * response halves it, and latency above twice the baseline, which means requests queue in the service, shrinks it
+ * by a tenth. At most one decrease is applied per round trip, so a burst of throttled responses to requests which
+ * were sent together counts once. The baseline is the lowest recent latency of each type of request and payload
+ * size, so small metadata requests and large range transfers, or 4 KB and 4 MB ranges, are judged against their own
+ * norm. Payload sizes are grouped in buckets growing by a factor of four from 4 KB up to over 1 MB.
+ *
+ * The signals are taken from every request attempt, including the retries the SDK makes on its own, through its
+ * global request events. There is one limiter per endpoint, shared by all operations of a CloudFileClient and of any
+ * other client of the same account, which is also the scope at which the service throttles. Callers hold a permit
+ * from acquire() to release() around each unit of work, such as a range transfer or a directory listing.
+ */
+final class AdaptiveConcurrencyLimiter {
+
+    static final int DEFAULT_INITIAL_LIMIT = 8;
+    static final int DEFAULT_MAX_LIMIT = 256;
+
+    private static final double BACKOFF_RATIO = 0.5;
+    private static final double LATENCY_BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final int BASELINE_WINDOW = 500;
+    private static final double THROTTLE_RATE_SMOOTHING = 0.02;
+    private static final int SIZE_BUCKETS = 6;
+    private static final int MIN_BUCKET_SHIFT = 12;
+
+    private static final Map<String, AdaptiveConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+    private static final ThreadLocal<long[]> sendingNanos = new ThreadLocal<>();
+
+    private static final StorageEvent<SendingRequestEvent> sendingListener = new StorageEvent<SendingRequestEvent>() {
+        @Override
+        public void eventOccurred(SendingRequestEvent eventArg) {
+            long[] start = sendingNanos.get();
+            if (start == null) {
+                start = new long[1];
+                sendingNanos.set(start);
+            }
+            start[0] = System.nanoTime();
+        }
+    };
+
+    private static final StorageEvent<ResponseReceivedEvent> responseListener = new StorageEvent<ResponseReceivedEvent>() {
+        @Override
+        public void eventOccurred(ResponseReceivedEvent eventArg) {
+            HttpURLConnection connection = (HttpURLConnection) eventArg.getConnectionObject();
+            AdaptiveConcurrencyLimiter limiter = limiters.get(connection.getURL().getAuthority());
+            long[] start = sendingNanos.get();
+            if (limiter != null && start != null) {
+                limiter.onResponse(connection, System.nanoTime() - start[0]);
+            }
+        }
+    };
+
+    private final String endpoint;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitReleased = this.lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+    private long responses;
+    private long throttled;
+    private double throttleRate;
+    private double latencyRatio = 1;
+    private long roundTripNanos;
+    private long lastDecreaseNanos = System.nanoTime();
+
+    private final long[] baselineNanos = new long[ClientMetrics.RequestType.values().length * SIZE_BUCKETS];
+    private final long[] windowMinNanos = new long[ClientMetrics.RequestType.values().length * SIZE_BUCKETS];
+    private final int[] windowSamples = new int[ClientMetrics.RequestType.values().length * SIZE_BUCKETS];
+
+    /**
+     * Creates a limiter which is not attached to any endpoint, for callers which report the responses themselves.
+     *
+     * @param initialLimit The limit to start from.
+     * @param maxLimit The highest limit allowed.
+     */
+    AdaptiveConcurrencyLimiter(int initialLimit, int maxLimit) {
+        this(null, initialLimit, maxLimit);
+    }
+
+    private AdaptiveConcurrencyLimiter(String endpoint, int initialLimit, int maxLimit) {
+        if (initialLimit <= 0 || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("The limits must be positive and the initial limit at most the maximum.");
+        }
+
+        this.endpoint = endpoint;
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Returns the limiter shared by all operations against the endpoint of the client, creating it on first use.
+     *
+     * @param client The client whose requests are limited.
+     * @return The limiter of the client's endpoint.
+     */
+    static AdaptiveConcurrencyLimiter forClient(CloudFileClient client) {
+        String endpoint = client.getEndpoint().getAuthority();
+        AdaptiveConcurrencyLimiter limiter = limiters.get(endpoint);
+        if (limiter != null) {
+            return limiter;
+        }
+
+        synchronized (limiters) {
+            if (limiters.isEmpty()) {
+                OperationContext.getGlobalSendingRequestEventHandler().addListener(sendingListener);
+                OperationContext.getGlobalResponseReceivedEventHandler().addListener(responseListener);
+            }
+            return limiters.computeIfAbsent(endpoint, key -> {
+                AdaptiveConcurrencyLimiter created = new AdaptiveConcurrencyLimiter(key, DEFAULT_INITIAL_LIMIT, DEFAULT_MAX_LIMIT);
+                created.registerMBean();
+                return created;
+            });
+        }
+    }
+
+    /**
+     * Waits until fewer operations than the limit are in flight and takes a permit.
+     *
+     * @throws InterruptedException
+     */
+    void acquire() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.inFlight >= (int) this.limit) {
+                this.permitReleased.await();
+            }
+            this.inFlight++;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a permit taken by acquire().
+     */
+    void release() {
+        this.lock.lock();
+        try {
+            this.inFlight--;
+            this.permitReleased.signal();
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Adapts the limit to the response of one request attempt.
+     *
+     * @param type The type of the request.
+     * @param bytes The number of payload bytes sent and received.
+     * @param latencyNanos The time from sending the request to receiving the response.
+     * @param throttled Whether the service asked to slow down.
+     */
+    void onResponse(ClientMetrics.RequestType type, long bytes, long latencyNanos, boolean throttled) {
+        long now = System.nanoTime();
+        this.lock.lock();
+        try {
+            this.responses++;
+            this.throttleRate += ((throttled ? 1 : 0) - this.throttleRate) * THROTTLE_RATE_SMOOTHING;
+            this.roundTripNanos = this.roundTripNanos == 0 ? latencyNanos : (this.roundTripNanos * 7 + latencyNanos) / 8;
+            boolean canDecrease = now - this.lastDecreaseNanos > this.roundTripNanos;
+
+            if (throttled) {
+                this.throttled++;
+                if (canDecrease) {
+                    decrease(BACKOFF_RATIO, now);
+                }
+                return;
+            }
+
+            this.latencyRatio += ((double) latencyNanos / updateBaseline(type.ordinal() * SIZE_BUCKETS + sizeBucket(bytes), latencyNanos) - this.latencyRatio) / 8;
+            if (this.latencyRatio > LATENCY_TOLERANCE) {
+                if (canDecrease) {
+                    decrease(LATENCY_BACKOFF_RATIO, now);
+                }
+            }
+            else if (this.inFlight >= (int) this.limit / 2) {
+                // Only grow while the limit is actually being used, or an idle limiter would grow without bound
+                this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+                this.permitReleased.signal();
+            }
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void onResponse(HttpURLConnection connection, long latencyNanos) {
+        int statusCode;
+        try {
+            statusCode = connection.getResponseCode();
+        }
+        catch (IOException e) {
+            return;
+        }
+
+        boolean throttled = statusCode == HttpURLConnection.HTTP_UNAVAILABLE
+                || statusCode == HttpURLConnection.HTTP_INTERNAL_ERROR && "OperationTimedOut".equals(connection.getHeaderField("x-ms-error-code"));
+        ClientMetrics.RequestType type = ClientMetrics.classify(connection.getRequestMethod(), connection.getURL().getQuery(),
+                connection.getRequestProperty("x-ms-write"), connection.getRequestProperty("x-ms-copy-source"));
+        long bytes = type == ClientMetrics.RequestType.PUT_RANGE ? ClientMetrics.rangeLength(connection.getRequestProperty("x-ms-range")) : 0;
+        if (!"HEAD".equals(connection.getRequestMethod())) {
+            bytes += Math.max(0, connection.getContentLengthLong());
+        }
+        onResponse(type, bytes, latencyNanos, throttled);
+    }
+
+    /**
+     * Maps a payload size to its bucket: up to 4 KB, up to 16 KB, and so on up to 1 MB, then everything larger.
+     */
+    static int sizeBucket(long bytes) {
+        if (bytes <= 1L << MIN_BUCKET_SHIFT) {
+            return 0;
+        }
+        int log2 = 63 - Long.numberOfLeadingZeros(bytes - 1);
+        return Math.min(SIZE_BUCKETS - 1, (log2 - MIN_BUCKET_SHIFT) / 2 + 1);
+    }
+
+    private void decrease(double ratio, long now) {
+        this.limit = Math.max(1, this.limit * ratio);
+        this.lastDecreaseNanos = now;
+        this.latencyRatio = 1;
+    }
+
+    /**
+     * Tracks the lowest latency of a type and size of request over the current and the previous window of samples.
+     *
+     * @return The baseline latency of the type and size of request.
+     */
+    private long updateBaseline(int slot, long latencyNanos) {
+        if (this.windowSamples[slot] == 0 || latencyNanos < this.windowMinNanos[slot]) {
+            this.windowMinNanos[slot] = latencyNanos;
+        }
+        if (this.baselineNanos[slot] == 0 || latencyNanos < this.baselineNanos[slot]) {
+            this.baselineNanos[slot] = latencyNanos;
+        }
+        if (++this.windowSamples[slot] == BASELINE_WINDOW) {
+            // Let the baseline rise again when the service has become slower for good
+            this.baselineNanos[slot] = this.windowMinNanos[slot];
+            this.windowSamples[slot] = 0;
+        }
+        return Math.max(this.baselineNanos[slot], 1);
+    }
+
+    /**
+     * @return The current number of operations allowed in flight.
+     */
+    int getLimit() {
+        this.lock.lock();
+        try {
+            return (int) this.limit;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of operations holding a permit.
+     */
+    int getInFlight() {
+        this.lock.lock();
+        try {
+            return this.inFlight;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of responses seen.
+     */
+    long getResponseCount() {
+        this.lock.lock();
+        try {
+            return this.responses;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of responses which asked to slow down.
+     */
+    long getThrottledCount() {
+        this.lock.lock();
+        try {
+            return this.throttled;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return The recent fraction of throttled responses, smoothed over roughly the last fifty responses.
+     */
+    double getThrottleRate() {
+        this.lock.lock();
+        try {
+            return this.throttleRate;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        this.lock.lock();
+        try {
+            return String.format("limit %d, %d in flight, %d responses, %d throttled (recent rate %.1f%%)",
+                    (int) this.limit, this.inFlight, this.responses, this.throttled, this.throttleRate * 100);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(ClientMetrics.JMX_DOMAIN + ":type=ConcurrencyLimiter,endpoint=" + ObjectName.quote(this.endpoint));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new LimiterMBean(), name);
+            }
+        }
+        catch (JMException e) {
+            System.out.println(String.format("\nCould not register the concurrency limiter MBean of %s: %s", this.endpoint, e.getMessage()));
+        }
+    }
+
+    /**
+     * Exposes the state of the limiter as read-only MBean attributes.
+     */
+    private final class LimiterMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            switch (attribute) {
+                case "Limit":
+                    return getLimit();
+                case "InFlight":
+                    return getInFlight();
+                case "Responses":
+                    return getResponseCount();
+                case "Throttled":
+                    return getThrottledCount();
+                case "ThrottleRate":
+                    return getThrottleRate();
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                }
+                catch (AttributeNotFoundException e) {
+                    // Unknown attributes are left out, as the contract allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("The limiter state is read-only.");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "The MBean has no operations.");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return new MBeanInfo(AdaptiveConcurrencyLimiter.class.getName(), "Adaptive concurrency limit of " + endpoint,
+                    new MBeanAttributeInfo[] {
+                            new MBeanAttributeInfo("Limit", "int", "Operations allowed in flight", true, false, false),
+                            new MBeanAttributeInfo("InFlight", "int", "Operations in flight", true, false, false),
+                            new MBeanAttributeInfo("Responses", "long", "Responses seen", true, false, false),
+                            new MBeanAttributeInfo("Throttled", "long", "Throttled responses", true, false, false),
+                            new MBeanAttributeInfo("ThrottleRate", "double", "Recent fraction of throttled responses", true, false, false) },
+                    null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
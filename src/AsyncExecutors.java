@@ -0,0 +1,61 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor the async file operations run on by default.
+ *
+ * Every operation blocks its thread for a full round trip to the service. Before Java 21 threads are operating
+ * system threads, so this version bounds them to a fixed pool and queues the operations beyond it. The jar also
+ * carries a Java 21 version of this class in META-INF/versions/21, which runs every operation on its own virtual
+ * thread instead, so thousands of operations can be in flight for little memory.
+ */
+final class AsyncExecutors {
+
+    /**
+     * The number of platform threads of the default executor.
+     */
+    static final int DEFAULT_PLATFORM_THREADS = 64;
+
+    private AsyncExecutors() {
+    }
+
+    /**
+     * @return A new executor for blocking service calls, which the caller must shut down.
+     */
+    static ExecutorService newExecutor() {
+        return Executors.newFixedThreadPool(DEFAULT_PLATFORM_THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "async-file-operations-" + this.count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return Whether the executors created run each task on its own virtual thread.
+     */
+    static boolean usesVirtualThreads() {
+        return false;
+    }
+}
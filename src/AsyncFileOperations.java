@@ -0,0 +1,325 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.CloudFileClient;
+import com.microsoft.azure.storage.file.CloudFileDirectory;
+import com.microsoft.azure.storage.file.CloudFileShare;
+import com.microsoft.azure.storage.file.CopyState;
+import com.microsoft.azure.storage.file.FileRange;
+import com.microsoft.azure.storage.file.FileServiceProperties;
+import com.microsoft.azure.storage.file.ListFileItem;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs the share, directory and file operations of the samples asynchronously, each returning a CompletableFuture.
+ *
+ * The SDK only offers blocking calls, so each operation occupies a thread of the executor for its round trip. By
+ * default the executor comes from AsyncExecutors, which uses a virtual thread per operation on Java 21 and later
+ * and a bounded pool of platform threads before. An AdaptiveConcurrencyLimiter can hold the operations to the
+ * concurrency the service copes with, which matters once virtual threads make it cheap to start thousands at once.
+ *
+ * A failed operation completes its future exceptionally with the StorageException or other exception of the call.
+ */
+class AsyncFileOperations implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private CopyScheduler copyScheduler;
+    private boolean closed;
+
+    /**
+     * Creates the operations on a new default executor, without a concurrency limit.
+     */
+    AsyncFileOperations() {
+        this(AsyncExecutors.newExecutor(), true, null);
+    }
+
+    /**
+     * Creates the operations on the given executor, which the caller keeps ownership of.
+     *
+     * @param executor The executor the blocking calls run on.
+     * @param limiter Holds the calls to its limit while they run. May be null.
+     */
+    AsyncFileOperations(ExecutorService executor, AdaptiveConcurrencyLimiter limiter) {
+        this(executor, false, limiter);
+    }
+
+    private AsyncFileOperations(ExecutorService executor, boolean ownsExecutor, AdaptiveConcurrencyLimiter limiter) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.limiter = limiter;
+    }
+
+    CompletableFuture<FileServiceProperties> downloadServiceProperties(final CloudFileClient client) {
+        return supply(() -> client.downloadServiceProperties());
+    }
+
+    CompletableFuture<Void> uploadServiceProperties(final CloudFileClient client, final FileServiceProperties properties) {
+        return run(() -> client.uploadServiceProperties(properties));
+    }
+
+    /**
+     * Lists all shares whose names start with the prefix, reading every page of the listing.
+     */
+    CompletableFuture<List<CloudFileShare>> listShares(final CloudFileClient client, final String prefix) {
+        return supply(() -> {
+            List<CloudFileShare> shares = new ArrayList<>();
+            for (CloudFileShare share : client.listShares(prefix)) {
+                shares.add(share);
+            }
+            return shares;
+        });
+    }
+
+    CompletableFuture<Boolean> createIfNotExists(final CloudFileShare share) {
+        return supply(() -> share.createIfNotExists());
+    }
+
+    CompletableFuture<Boolean> deleteIfExists(final CloudFileShare share) {
+        return supply(() -> share.deleteIfExists());
+    }
+
+    /**
+     * Downloads the properties and metadata of the share into the share object.
+     *
+     * @return A future completed with the share itself.
+     */
+    CompletableFuture<CloudFileShare> downloadAttributes(final CloudFileShare share) {
+        return supply(() -> {
+            share.downloadAttributes();
+            return share;
+        });
+    }
+
+    CompletableFuture<Void> uploadMetadata(final CloudFileShare share) {
+        return run(() -> share.uploadMetadata());
+    }
+
+    CompletableFuture<Void> uploadProperties(final CloudFileShare share) {
+        return run(() -> share.uploadProperties());
+    }
+
+    CompletableFuture<Boolean> createIfNotExists(final CloudFileDirectory directory) {
+        return supply(() -> directory.createIfNotExists());
+    }
+
+    CompletableFuture<Boolean> deleteIfExists(final CloudFileDirectory directory) {
+        return supply(() -> directory.deleteIfExists());
+    }
+
+    /**
+     * Downloads the properties and metadata of the directory into the directory object.
+     *
+     * @return A future completed with the directory itself.
+     */
+    CompletableFuture<CloudFileDirectory> downloadAttributes(final CloudFileDirectory directory) {
+        return supply(() -> {
+            directory.downloadAttributes();
+            return directory;
+        });
+    }
+
+    CompletableFuture<Void> uploadMetadata(final CloudFileDirectory directory) {
+        return run(() -> directory.uploadMetadata());
+    }
+
+    /**
+     * Lists the files and directories directly below the directory, reading every page of the listing.
+     */
+    CompletableFuture<List<ListFileItem>> list(final CloudFileDirectory directory) {
+        return supply(() -> {
+            List<ListFileItem> items = new ArrayList<>();
+            ResultContinuation token = null;
+            do {
+                ResultSegment<ListFileItem> segment = directory.listFilesAndDirectoriesSegmented(null, token, null, null);
+                items.addAll(segment.getResults());
+                token = segment.getContinuationToken();
+            } while (token != null);
+            return items;
+        });
+    }
+
+    CompletableFuture<Void> create(final CloudFile file, final long length) {
+        return run(() -> file.create(length));
+    }
+
+    CompletableFuture<Boolean> exists(final CloudFile file) {
+        return supply(() -> file.exists());
+    }
+
+    CompletableFuture<Boolean> deleteIfExists(final CloudFile file) {
+        return supply(() -> file.deleteIfExists());
+    }
+
+    /**
+     * Downloads the properties, metadata and copy state of the file into the file object.
+     *
+     * @return A future completed with the file itself.
+     */
+    CompletableFuture<CloudFile> downloadAttributes(final CloudFile file) {
+        return supply(() -> {
+            file.downloadAttributes();
+            return file;
+        });
+    }
+
+    CompletableFuture<Void> uploadMetadata(final CloudFile file) {
+        return run(() -> file.uploadMetadata());
+    }
+
+    CompletableFuture<Void> uploadProperties(final CloudFile file) {
+        return run(() -> file.uploadProperties());
+    }
+
+    /**
+     * Writes the bytes to the file at the offset. The caller must not change them until the future completes.
+     */
+    CompletableFuture<Void> uploadRange(final CloudFile file, final long offset, final byte[] data, final int dataOffset, final int length) {
+        return run(() -> file.uploadRange(new ByteArrayInputStream(data, dataOffset, length), offset, length));
+    }
+
+    CompletableFuture<Void> clearRange(final CloudFile file, final long offset, final long length) {
+        return run(() -> file.clearRange(offset, length));
+    }
+
+    /**
+     * Reads a range of the file.
+     *
+     * @return A future completed with the bytes read, which may be fewer than asked for at the end of the file.
+     */
+    CompletableFuture<byte[]> downloadRange(final CloudFile file, final long offset, final int length) {
+        return supply(() -> {
+            byte[] buffer = new byte[length];
+            int read = file.downloadRangeToByteArray(offset, (long) length, buffer, 0);
+            return read == length ? buffer : Arrays.copyOf(buffer, read);
+        });
+    }
+
+    CompletableFuture<List<FileRange>> downloadFileRanges(final CloudFile file) {
+        return supply(() -> file.downloadFileRanges());
+    }
+
+    CompletableFuture<Void> uploadFromFile(final CloudFile file, final String path) {
+        return run(() -> file.uploadFromFile(path));
+    }
+
+    CompletableFuture<Void> downloadToFile(final CloudFile file, final String path) {
+        return run(() -> file.downloadToFile(path));
+    }
+
+    /**
+     * Starts a server-side copy without waiting for it.
+     *
+     * @return A future completed with the copy ID.
+     */
+    CompletableFuture<String> startCopy(final CloudFile source, final CloudFile destination) {
+        return supply(() -> destination.startCopy(source));
+    }
+
+    CompletableFuture<Void> abortCopy(final CloudFile destination, final String copyId) {
+        return run(() -> destination.abortCopy(copyId));
+    }
+
+    /**
+     * Copies the file server-side and tracks the copy until it ends with the copy scheduler. The scheduler, with its
+     * timer and request threads, is created by the first copy. Its start, poll and abort requests are held to the
+     * limiter like every other operation.
+     *
+     * @return A future completed with the final copy state. It completes exceptionally if the operations are closed.
+     */
+    CompletableFuture<CopyState> copy(final CloudFile source, final CloudFile destination) {
+        CopyScheduler scheduler;
+        synchronized (this) {
+            if (this.closed) {
+                CompletableFuture<CopyState> future = new CompletableFuture<>();
+                future.completeExceptionally(new IllegalStateException("The operations were closed."));
+                return future;
+            }
+            if (this.copyScheduler == null) {
+                this.copyScheduler = new CopyScheduler(CopyScheduler.DEFAULT_MAX_PENDING_COPIES, this.limiter);
+            }
+            scheduler = this.copyScheduler;
+        }
+        return scheduler.startCopy(source, destination);
+    }
+
+    /**
+     * Stops tracking copies and shuts down the executor if it was created here. Running operations are interrupted.
+     */
+    @Override
+    public void close() {
+        CopyScheduler scheduler;
+        synchronized (this) {
+            this.closed = true;
+            scheduler = this.copyScheduler;
+        }
+        if (scheduler != null) {
+            scheduler.close();
+        }
+        if (this.ownsExecutor) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A service call without a result.
+     */
+    private interface Call {
+        void call() throws Exception;
+    }
+
+    private CompletableFuture<Void> run(final Call call) {
+        return supply(() -> {
+            call.call();
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> supply(final Callable<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                if (this.limiter == null) {
+                    return call.call();
+                }
+
+                this.limiter.acquire();
+                try {
+                    return call.call();
+                }
+                finally {
+                    this.limiter.release();
+                }
+            }
+            catch (CompletionException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, this.executor);
+    }
+}
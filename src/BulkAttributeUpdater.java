@@ -0,0 +1,202 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.CloudFileDirectory;
+import com.microsoft.azure.storage.file.CloudFileShare;
+import com.microsoft.azure.storage.file.FileProperties;
+
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Changes the content properties and metadata of every matching file of a directory tree or share.
+ *
+ * The tree is walked concurrently and every file which passes the filter is updated on a bounded pool as soon as
+ * it is found. Each update reads the file's current properties and metadata, applies the transform to a copy, and
+ * writes back only what the transform changed, so files which already have the wanted values cost a single read.
+ * The writes are conditioned on the ETag read, so a change made by someone else in between is never overwritten:
+ * the file is read and transformed again instead, up to MAX_ATTEMPTS times.
+ */
+class BulkAttributeUpdater {
+
+    static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    /**
+     * The number of times a file is read, transformed and written before a conflicting change counts as a failure.
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    private final int maxInFlight;
+    private final DirectoryTreeWalker walker;
+
+    /**
+     * Creates an updater with the default parallelism.
+     */
+    BulkAttributeUpdater() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Creates an updater.
+     *
+     * @param maxInFlight The maximum number of files being updated at the same time.
+     */
+    BulkAttributeUpdater(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("The maximum number of in-flight updates must be positive.");
+        }
+
+        this.maxInFlight = maxInFlight;
+        this.walker = new DirectoryTreeWalker(Math.min(maxInFlight, DirectoryTreeWalker.DEFAULT_MAX_IN_FLIGHT_LISTINGS));
+    }
+
+    /**
+     * Updates the matching files of the whole share.
+     *
+     * @see #update(CloudFileDirectory, Predicate, BiConsumer, Consumer)
+     */
+    BulkProgress update(CloudFileShare share, Predicate<CloudFile> filter, BiConsumer<FileProperties, HashMap<String, String>> transform,
+                        Consumer<BulkProgress> listener) throws StorageException, URISyntaxException, InterruptedException {
+        return update(share.getRootDirectoryReference(), filter, transform, listener);
+    }
+
+    /**
+     * Updates the matching files below the directory. Files which need no change are counted as skipped, and
+     * failures of individual files are counted in the progress rather than stopping the update.
+     *
+     * @param directory The directory whose tree is updated.
+     * @param filter Selects the files to update. It sees the files as listed, with their name, URI and length
+     *               but without their other properties. May be null to update every file.
+     * @param transform Changes the properties and metadata it is given in place. It is called from worker threads,
+     *                  and again for the same file if the file changed while it was being updated.
+     * @param listener Called with the progress after each file, from worker threads. May be null.
+     * @return The final progress.
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkProgress update(CloudFileDirectory directory, final Predicate<CloudFile> filter, final BiConsumer<FileProperties, HashMap<String, String>> transform,
+                        final Consumer<BulkProgress> listener) throws StorageException, InterruptedException {
+
+        final BulkProgress progress = new BulkProgress();
+        final Semaphore permits = new Semaphore(this.maxInFlight);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(this.maxInFlight);
+        try {
+            this.walker.walk(directory, item -> {
+                if (!(item instanceof CloudFile) || filter != null && !filter.test((CloudFile) item)) {
+                    return;
+                }
+
+                progress.itemFound();
+                permits.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        updateFile((CloudFile) item, transform, progress);
+                    }
+                    finally {
+                        permits.release();
+                        if (listener != null) {
+                            listener.accept(progress);
+                        }
+                    }
+                });
+            });
+
+            // Wait for every update still in flight
+            permits.acquire(this.maxInFlight);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        progress.complete();
+        return progress;
+    }
+
+    /**
+     * Reads, transforms and conditionally writes one file, starting over when its ETag no longer matches.
+     */
+    private static void updateFile(CloudFile file, BiConsumer<FileProperties, HashMap<String, String>> transform, BulkProgress progress) {
+        try {
+            for (int attempt = 1; ; attempt++) {
+                file.downloadAttributes();
+                FileProperties properties = file.getProperties();
+                String[] originalHeaders = contentHeaders(properties);
+                HashMap<String, String> originalMetadata = new HashMap<>(file.getMetadata());
+
+                transform.accept(properties, file.getMetadata());
+                boolean propertiesChanged = !Arrays.equals(originalHeaders, contentHeaders(properties));
+                boolean metadataChanged = !originalMetadata.equals(file.getMetadata());
+                if (!propertiesChanged && !metadataChanged) {
+                    progress.itemSkipped();
+                    return;
+                }
+
+                try {
+                    // Each write returns the new ETag, which conditions the next one
+                    if (propertiesChanged) {
+                        file.uploadProperties(AccessCondition.generateIfMatchCondition(properties.getEtag()), null, null);
+                    }
+                    if (metadataChanged) {
+                        file.uploadMetadata(AccessCondition.generateIfMatchCondition(properties.getEtag()), null, null);
+                    }
+                    progress.itemCompleted(0);
+                    return;
+                }
+                catch (StorageException e) {
+                    if (e.getHttpStatusCode() != HttpURLConnection.HTTP_PRECON_FAILED || attempt == MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+        }
+        catch (StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                progress.itemSkipped();
+            }
+            else {
+                progress.itemFailed(e);
+            }
+        }
+        catch (RuntimeException e) {
+            progress.itemFailed(e);
+        }
+    }
+
+    /**
+     * @return The content headers which Set File Properties writes, in a fixed order.
+     */
+    private static String[] contentHeaders(FileProperties properties) {
+        return new String[] {
+                properties.getCacheControl(),
+                properties.getContentDisposition(),
+                properties.getContentEncoding(),
+                properties.getContentLanguage(),
+                properties.getContentMD5(),
+                properties.getContentType() };
+    }
+}
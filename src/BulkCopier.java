@@ -0,0 +1,212 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.CloudFileDirectory;
+import com.microsoft.azure.storage.file.CloudFileShare;
+import com.microsoft.azure.storage.file.CopyState;
+import com.microsoft.azure.storage.file.CopyStatus;
+import com.microsoft.azure.storage.file.ListFileItem;
+
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Copies whole directory trees or shares with server-side copies.
+ *
+ * The source tree is walked concurrently. Every directory is recreated in the destination as soon as its parent
+ * exists, and every file is copied with a server-side copy once its directory exists. At most maxInFlight files
+ * and directories are being worked on at any time, which also holds back the walk of the source tree. The copy
+ * scheduler gets the same cap, so up to maxInFlight copies are started and polled in parallel.
+ *
+ * Each copied file is tagged with the ETag of its source in its metadata. A rerun skips files whose destination
+ * already has the source's length, was copied from the same URI and carries the same source ETag, so an
+ * interrupted migration can simply be started again.
+ */
+class BulkCopier {
+
+    /**
+     * The metadata key which records the ETag of the source a file was copied from.
+     */
+    static final String COPY_SOURCE_ETAG_METADATA = "copysourceetag";
+
+    static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private final int maxInFlight;
+    private final DirectoryTreeWalker walker;
+
+    /**
+     * Creates a copier with the default parallelism.
+     */
+    BulkCopier() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Creates a copier.
+     *
+     * @param maxInFlight The maximum number of files and directories being copied at the same time.
+     */
+    BulkCopier(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("The maximum number of in-flight items must be positive.");
+        }
+
+        this.maxInFlight = maxInFlight;
+        this.walker = new DirectoryTreeWalker(Math.min(maxInFlight, DirectoryTreeWalker.DEFAULT_MAX_IN_FLIGHT_LISTINGS));
+    }
+
+    /**
+     * Copies all files and directories of the source share into the destination share.
+     *
+     * @see #copy(CloudFileDirectory, CloudFileDirectory, Consumer)
+     */
+    BulkProgress copy(CloudFileShare source, CloudFileShare destination, Consumer<BulkProgress> listener) throws StorageException, URISyntaxException, InterruptedException {
+        return copy(source.getRootDirectoryReference(), destination.getRootDirectoryReference(), listener);
+    }
+
+    /**
+     * Copies all files and directories below the source directory into the destination directory, which must exist.
+     * Failures of individual items are counted in the progress rather than stopping the copy.
+     *
+     * @param source The directory to copy from.
+     * @param destination The directory to copy into.
+     * @param listener Called with the progress after each item, from worker threads. May be null.
+     * @return The final progress.
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkProgress copy(final CloudFileDirectory source, final CloudFileDirectory destination, final Consumer<BulkProgress> listener) throws StorageException, InterruptedException {
+
+        final BulkProgress progress = new BulkProgress();
+        final Semaphore permits = new Semaphore(this.maxInFlight);
+        final Map<String, CompletableFuture<Void>> directories = new ConcurrentHashMap<>();
+        directories.put("", CompletableFuture.<Void>completedFuture(null));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(this.maxInFlight);
+        final CopyScheduler scheduler = new CopyScheduler(this.maxInFlight);
+        try {
+            this.walker.walk(source, item -> {
+                permits.acquireUninterruptibly();
+                progress.itemFound();
+
+                String path = FilePathHelper.relativePath(source, item);
+                CompletableFuture<Void> parent = directories.get(FilePathHelper.parentPath(path));
+                CompletableFuture<Long> done;
+                if (item instanceof CloudFileDirectory) {
+                    CompletableFuture<Void> created = parent.thenRunAsync(() -> createDirectory(destination, path), executor);
+                    directories.put(path, created);
+                    done = created.thenApply(ignored -> 0L);
+                }
+                else {
+                    done = parent.thenComposeAsync(ignored -> copyFile((CloudFile) item, destination, path, scheduler, progress), executor);
+                }
+
+                done.whenComplete((bytes, failure) -> {
+                    if (failure != null) {
+                        progress.itemFailed(failure instanceof CompletionException ? failure.getCause() : failure);
+                    }
+                    else if (bytes != null) {
+                        progress.itemCompleted(bytes);
+                    }
+                    permits.release();
+                    if (listener != null) {
+                        listener.accept(progress);
+                    }
+                });
+            });
+
+            // Wait for every item still in flight
+            permits.acquire(this.maxInFlight);
+        }
+        finally {
+            scheduler.close();
+            executor.shutdownNow();
+        }
+
+        progress.complete();
+        return progress;
+    }
+
+    private static void createDirectory(CloudFileDirectory destination, String path) {
+        try {
+            FilePathHelper.getDirectoryReference(destination, path).createIfNotExists();
+        }
+        catch (StorageException | URISyntaxException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Starts the copy of one file unless its destination is already up to date.
+     *
+     * @return A future completed with the number of bytes copied, or null if the file was skipped.
+     */
+    private static CompletableFuture<Long> copyFile(CloudFile sourceFile, CloudFileDirectory destination, String path, CopyScheduler scheduler, BulkProgress progress) {
+        try {
+            sourceFile.downloadAttributes();
+            final long length = sourceFile.getProperties().getLength();
+            String sourceEtag = sourceFile.getProperties().getEtag();
+
+            CloudFile destinationFile = FilePathHelper.getFileReference(destination, path);
+            if (isUpToDate(sourceFile, destinationFile)) {
+                progress.itemSkipped();
+                return CompletableFuture.completedFuture(null);
+            }
+
+            HashMap<String, String> metadata = new HashMap<>(sourceFile.getMetadata());
+            metadata.put(COPY_SOURCE_ETAG_METADATA, sourceEtag);
+            destinationFile.setMetadata(metadata);
+
+            return scheduler.startCopy(sourceFile, destinationFile).thenApply(state -> {
+                if (state.getStatus() != CopyStatus.SUCCESS) {
+                    throw new CompletionException(new IllegalStateException(String.format(
+                            "Copy of \"%s\" finished with status %s: %s", path, state.getStatus(), state.getStatusDescription())));
+                }
+                return length;
+            });
+        }
+        catch (StorageException | URISyntaxException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Checks whether the destination is a successful copy of the current version of the source.
+     */
+    private static boolean isUpToDate(CloudFile sourceFile, CloudFile destinationFile) throws StorageException {
+        if (!destinationFile.exists()) {
+            return false;
+        }
+
+        CopyState copyState = destinationFile.getCopyState();
+        return destinationFile.getProperties().getLength() == sourceFile.getProperties().getLength()
+                && copyState != null
+                && copyState.getStatus() == CopyStatus.SUCCESS
+                && copyState.getSource() != null
+                && copyState.getSource().getPath().equals(sourceFile.getUri().getPath())
+                && sourceFile.getProperties().getEtag().equals(destinationFile.getMetadata().get(COPY_SOURCE_ETAG_METADATA));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Aggregate progress and throughput of an operation applied to many files and directories.
+ */
+final class BulkProgress {
+
+    private final long startNanos = System.nanoTime();
+    private volatile long endNanos;
+    private final AtomicLong found = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+
+    void itemFound() {
+        this.found.incrementAndGet();
+    }
+
+    void itemCompleted(long itemBytes) {
+        this.completed.incrementAndGet();
+        this.bytes.addAndGet(itemBytes);
+    }
+
+    void itemSkipped() {
+        this.skipped.incrementAndGet();
+    }
+
+    void itemFailed(Throwable t) {
+        this.failed.incrementAndGet();
+        this.firstFailure.compareAndSet(null, t);
+    }
+
+    void complete() {
+        this.endNanos = System.nanoTime();
+    }
+
+    /**
+     * @return The number of items found so far.
+     */
+    long getFoundCount() {
+        return this.found.get();
+    }
+
+    /**
+     * @return The number of items the operation was applied to.
+     */
+    long getCompletedCount() {
+        return this.completed.get();
+    }
+
+    /**
+     * @return The number of items which needed no change.
+     */
+    long getSkippedCount() {
+        return this.skipped.get();
+    }
+
+    /**
+     * @return The number of items the operation failed for.
+     */
+    long getFailedCount() {
+        return this.failed.get();
+    }
+
+    /**
+     * @return The first failure, or null if nothing failed.
+     */
+    Throwable getFirstFailure() {
+        return this.firstFailure.get();
+    }
+
+    /**
+     * @return The number of bytes covered by the completed items.
+     */
+    long getBytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * @return The elapsed time in nanoseconds, up to completion.
+     */
+    long getElapsedNanos() {
+        return (this.endNanos != 0 ? this.endNanos : System.nanoTime()) - this.startNanos;
+    }
+
+    @Override
+    public String toString() {
+        double seconds = Math.max(getElapsedNanos() / 1e9, 1e-9);
+        return String.format(
+                "%d found, %d done, %d skipped, %d failed, %d bytes in %.1f s (%.1f items/s, %.2f MB/s)",
+                getFoundCount(),
+                getCompletedCount(),
+                getSkippedCount(),
+                getFailedCount(),
+                getBytes(),
+                seconds,
+                (getCompletedCount() + getSkippedCount()) / seconds,
+                getBytes() / (1024.0 * 1024.0) / seconds);
+    }
+}
@@ -0,0 +1,562 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RequestCompletedEvent;
+import com.microsoft.azure.storage.ResponseReceivedEvent;
+import com.microsoft.azure.storage.RetryingEvent;
+import com.microsoft.azure.storage.SendingRequestEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import com.microsoft.azure.storage.StorageException;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Records the latency, traffic, retries and errors of every request the SDK sends, per type of request.
+ *
+ * The recorder listens to the SDK's global OperationContext events, so it sees the requests of every client and
+ * needs no change to the calling code. A request's type is derived from its method, query and headers, and its
+ * latency is timed from the sending event to the completion event on the thread which runs the request. Recording
+ * takes a few atomic additions and allocates nothing for successful requests, so it can be left on.
+ *
+ * The metrics can be read in code, as one JMX MBean per request type under the domain JMX_DOMAIN, and as a
+ * periodic text report.
+ */
+final class ClientMetrics {
+
+    static final String JMX_DOMAIN = "FileServiceClient";
+
+    /**
+     * The types of request of the File service REST API.
+     */
+    enum RequestType {
+        GET_SERVICE_PROPERTIES, SET_SERVICE_PROPERTIES, LIST_SHARES,
+        CREATE_SHARE, DELETE_SHARE, GET_SHARE_PROPERTIES, SET_SHARE_PROPERTIES,
+        CREATE_DIRECTORY, DELETE_DIRECTORY, GET_DIRECTORY_PROPERTIES, SET_DIRECTORY_METADATA, LIST_FILES_AND_DIRECTORIES,
+        CREATE_FILE, DELETE_FILE, GET_FILE, GET_FILE_PROPERTIES, SET_FILE_PROPERTIES, SET_FILE_METADATA,
+        PUT_RANGE, CLEAR_RANGE, LIST_RANGES, START_COPY, ABORT_COPY,
+        OTHER
+    }
+
+    private static final String[] COMP_VALUES = { "list", "range", "rangelist", "copy", "metadata", "properties", "acl", "stats" };
+
+    private static ClientMetrics installed;
+
+    private final Map<RequestType, RequestMetrics> metrics = new EnumMap<>(RequestType.class);
+    private final ThreadLocal<InFlight> inFlight = ThreadLocal.withInitial(InFlight::new);
+    private ScheduledExecutorService reporter;
+
+    private final StorageEvent<SendingRequestEvent> sendingListener = new StorageEvent<SendingRequestEvent>() {
+        @Override
+        public void eventOccurred(SendingRequestEvent eventArg) {
+            sending((HttpURLConnection) eventArg.getConnectionObject());
+        }
+    };
+
+    private final StorageEvent<ResponseReceivedEvent> responseListener = new StorageEvent<ResponseReceivedEvent>() {
+        @Override
+        public void eventOccurred(ResponseReceivedEvent eventArg) {
+            received((HttpURLConnection) eventArg.getConnectionObject());
+        }
+    };
+
+    private final StorageEvent<RequestCompletedEvent> completedListener = new StorageEvent<RequestCompletedEvent>() {
+        @Override
+        public void eventOccurred(RequestCompletedEvent eventArg) {
+            completed(eventArg.getRequestResult().getStatusCode(), eventArg.getRequestResult().getException());
+        }
+    };
+
+    private final StorageEvent<RetryingEvent> retryingListener = new StorageEvent<RetryingEvent>() {
+        @Override
+        public void eventOccurred(RetryingEvent eventArg) {
+            // The SDK decides to retry after the failed attempt completed
+            InFlight request = inFlight.get();
+            if (request.lastType != null) {
+                metrics.get(request.lastType).retries.increment();
+            }
+        }
+    };
+
+    private ClientMetrics() {
+        for (RequestType type : RequestType.values()) {
+            this.metrics.put(type, new RequestMetrics(type));
+        }
+    }
+
+    /**
+     * Starts recording the requests of all clients and registers the MBeans, unless this was done already.
+     *
+     * @return The metrics being recorded.
+     */
+    static synchronized ClientMetrics enable() {
+        if (installed == null) {
+            ClientMetrics clientMetrics = new ClientMetrics();
+            OperationContext.getGlobalSendingRequestEventHandler().addListener(clientMetrics.sendingListener);
+            OperationContext.getGlobalResponseReceivedEventHandler().addListener(clientMetrics.responseListener);
+            OperationContext.getGlobalRequestCompletedEventHandler().addListener(clientMetrics.completedListener);
+            OperationContext.getGlobalRetryingEventHandler().addListener(clientMetrics.retryingListener);
+            clientMetrics.registerMBeans();
+            installed = clientMetrics;
+        }
+        return installed;
+    }
+
+    /**
+     * Stops recording, unregisters the MBeans and stops any periodic report.
+     */
+    static synchronized void disable() {
+        ClientMetrics clientMetrics = installed;
+        if (clientMetrics == null) {
+            return;
+        }
+
+        OperationContext.getGlobalSendingRequestEventHandler().removeListener(clientMetrics.sendingListener);
+        OperationContext.getGlobalResponseReceivedEventHandler().removeListener(clientMetrics.responseListener);
+        OperationContext.getGlobalRequestCompletedEventHandler().removeListener(clientMetrics.completedListener);
+        OperationContext.getGlobalRetryingEventHandler().removeListener(clientMetrics.retryingListener);
+        clientMetrics.unregisterMBeans();
+        synchronized (clientMetrics) {
+            if (clientMetrics.reporter != null) {
+                clientMetrics.reporter.shutdownNow();
+            }
+        }
+        installed = null;
+    }
+
+    /**
+     * @return The metrics of one type of request.
+     */
+    RequestMetrics get(RequestType type) {
+        return this.metrics.get(type);
+    }
+
+    /**
+     * Reports the metrics periodically, from a daemon thread.
+     *
+     * @param period The time between two reports.
+     * @param unit The unit of the period.
+     * @param sink Receives each report.
+     * @return The future of the reporting task, which can be cancelled to stop it.
+     */
+    synchronized ScheduledFuture<?> startReporting(long period, TimeUnit unit, final Consumer<String> sink) {
+        if (this.reporter == null) {
+            this.reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "client-metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return this.reporter.scheduleAtFixedRate(() -> sink.accept(snapshot()), period, period, unit);
+    }
+
+    /**
+     * @return A table of the metrics of every type of request seen so far.
+     */
+    String snapshot() {
+        StringBuilder report = new StringBuilder(String.format("%-27s %9s %7s %7s %12s %12s %9s %9s %9s %9s%n",
+                "request", "requests", "errors", "retries", "bytes out", "bytes in", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (RequestMetrics requestMetrics : this.metrics.values()) {
+            LatencyHistogram latencies = requestMetrics.latencies;
+            if (requestMetrics.requests.sum() == 0) {
+                continue;
+            }
+            report.append(String.format("%-27s %9d %7d %7d %12d %12d %9.2f %9.2f %9.2f %9.2f%n",
+                    requestMetrics.type.name(),
+                    requestMetrics.getRequests(),
+                    requestMetrics.getErrors(),
+                    requestMetrics.getRetries(),
+                    requestMetrics.getBytesSent(),
+                    requestMetrics.getBytesReceived(),
+                    latencies.getPercentileMillis(50),
+                    latencies.getPercentileMillis(99),
+                    latencies.getPercentileMillis(99.9),
+                    latencies.getMaxNanos() / 1e6));
+            if (!requestMetrics.errorCodes.isEmpty()) {
+                report.append(String.format("%-27s %s%n", "", requestMetrics.getErrorCodes()));
+            }
+        }
+        return report.toString();
+    }
+
+    private void sending(HttpURLConnection connection) {
+        InFlight request = this.inFlight.get();
+        request.type = classify(connection.getRequestMethod(), connection.getURL().getQuery(),
+                connection.getRequestProperty("x-ms-write"), connection.getRequestProperty("x-ms-copy-source"));
+        request.bytesSent = request.type == RequestType.PUT_RANGE ? rangeLength(connection.getRequestProperty("x-ms-range")) : 0;
+        request.errorCode = null;
+        request.startNanos = System.nanoTime();
+    }
+
+    private void received(HttpURLConnection connection) {
+        InFlight request = this.inFlight.get();
+        if (request.type == null) {
+            return;
+        }
+
+        if (!"HEAD".equals(connection.getRequestMethod())) {
+            request.bytesReceived = Math.max(0, connection.getContentLengthLong());
+        }
+        request.errorCode = connection.getHeaderField("x-ms-error-code");
+    }
+
+    private void completed(int statusCode, Exception exception) {
+        InFlight request = this.inFlight.get();
+        if (request.type == null) {
+            return;
+        }
+
+        RequestMetrics requestMetrics = this.metrics.get(request.type);
+        requestMetrics.latencies.record(System.nanoTime() - request.startNanos);
+        requestMetrics.requests.increment();
+        requestMetrics.bytesSent.add(request.bytesSent);
+        requestMetrics.bytesReceived.add(request.bytesReceived);
+
+        if (statusCode >= 400 || statusCode <= 0 || exception != null) {
+            requestMetrics.errors.increment();
+            String errorCode = request.errorCode;
+            if (errorCode == null) {
+                errorCode = exception instanceof StorageException && ((StorageException) exception).getErrorCode() != null
+                        ? ((StorageException) exception).getErrorCode()
+                        : statusCode > 0 ? Integer.toString(statusCode) : exception != null ? exception.getClass().getSimpleName() : "Unknown";
+            }
+            requestMetrics.errorCodes.computeIfAbsent(errorCode, code -> new LongAdder()).increment();
+        }
+
+        request.lastType = request.type;
+        request.type = null;
+        request.bytesReceived = 0;
+    }
+
+    /**
+     * Derives the type of a request.
+     *
+     * @param method The HTTP method.
+     * @param query The query of the request URI, or null.
+     * @param write The value of the x-ms-write header, or null.
+     * @param copySource The value of the x-ms-copy-source header, or null.
+     * @return The type of the request.
+     */
+    static RequestType classify(String method, String query, String write, String copySource) {
+        boolean get = "GET".equals(method);
+        boolean head = "HEAD".equals(method);
+        boolean put = "PUT".equals(method);
+        boolean delete = "DELETE".equals(method);
+        String comp = null;
+        for (String value : COMP_VALUES) {
+            if (hasParameter(query, "comp", value)) {
+                comp = value;
+                break;
+            }
+        }
+
+        if (hasParameter(query, "restype", "service")) {
+            return get ? RequestType.GET_SERVICE_PROPERTIES : put ? RequestType.SET_SERVICE_PROPERTIES : RequestType.OTHER;
+        }
+        if (hasParameter(query, "restype", "share")) {
+            if (put) {
+                return comp == null ? RequestType.CREATE_SHARE : RequestType.SET_SHARE_PROPERTIES;
+            }
+            return get || head ? RequestType.GET_SHARE_PROPERTIES : delete ? RequestType.DELETE_SHARE : RequestType.OTHER;
+        }
+        if (hasParameter(query, "restype", "directory")) {
+            if ("list".equals(comp)) {
+                return RequestType.LIST_FILES_AND_DIRECTORIES;
+            }
+            if (put) {
+                return comp == null ? RequestType.CREATE_DIRECTORY : RequestType.SET_DIRECTORY_METADATA;
+            }
+            return get || head ? RequestType.GET_DIRECTORY_PROPERTIES : delete ? RequestType.DELETE_DIRECTORY : RequestType.OTHER;
+        }
+        if ("list".equals(comp)) {
+            return RequestType.LIST_SHARES;
+        }
+
+        if (comp == null) {
+            if (put) {
+                return copySource != null ? RequestType.START_COPY : RequestType.CREATE_FILE;
+            }
+            return get ? RequestType.GET_FILE : head ? RequestType.GET_FILE_PROPERTIES : delete ? RequestType.DELETE_FILE : RequestType.OTHER;
+        }
+        switch (comp) {
+            case "range":
+                return "clear".equalsIgnoreCase(write) ? RequestType.CLEAR_RANGE : RequestType.PUT_RANGE;
+            case "rangelist":
+                return RequestType.LIST_RANGES;
+            case "copy":
+                return RequestType.ABORT_COPY;
+            case "metadata":
+                return RequestType.SET_FILE_METADATA;
+            case "properties":
+                return RequestType.SET_FILE_PROPERTIES;
+            default:
+                return RequestType.OTHER;
+        }
+    }
+
+    /**
+     * Checks whether the query contains the parameter with exactly the value, without allocating.
+     */
+    private static boolean hasParameter(String query, String name, String value) {
+        if (query == null) {
+            return false;
+        }
+
+        int length = name.length() + 1 + value.length();
+        int start = 0;
+        while (true) {
+            if (query.length() - start >= length
+                    && query.startsWith(name, start)
+                    && query.charAt(start + name.length()) == '='
+                    && query.startsWith(value, start + name.length() + 1)
+                    && (start + length == query.length() || query.charAt(start + length) == '&')) {
+                return true;
+            }
+
+            int next = query.indexOf('&', start);
+            if (next < 0) {
+                return false;
+            }
+            start = next + 1;
+        }
+    }
+
+    /**
+     * Returns the length of a range header of the form "bytes=start-end", or 0 if it cannot be parsed.
+     */
+    static long rangeLength(String range) {
+        if (range == null || !range.startsWith("bytes=")) {
+            return 0;
+        }
+
+        long start = 0;
+        long end = 0;
+        boolean inEnd = false;
+        for (int i = "bytes=".length(); i < range.length(); i++) {
+            char c = range.charAt(i);
+            if (c == '-') {
+                inEnd = true;
+            }
+            else if (c >= '0' && c <= '9') {
+                if (inEnd) {
+                    end = end * 10 + (c - '0');
+                }
+                else {
+                    start = start * 10 + (c - '0');
+                }
+            }
+            else {
+                return 0;
+            }
+        }
+        return inEnd && end >= start ? end - start + 1 : 0;
+    }
+
+    private void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (RequestMetrics requestMetrics : this.metrics.values()) {
+            try {
+                ObjectName name = requestMetrics.getObjectName();
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(requestMetrics, name);
+                }
+            }
+            catch (JMException e) {
+                System.out.println(String.format("\nCould not register the metrics MBean of %s: %s", requestMetrics.type, e.getMessage()));
+            }
+        }
+    }
+
+    private void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (RequestMetrics requestMetrics : this.metrics.values()) {
+            try {
+                server.unregisterMBean(requestMetrics.getObjectName());
+            }
+            catch (JMException e) {
+                // Already gone
+            }
+        }
+    }
+
+    /**
+     * The request running on a thread, between its sending and completion events.
+     */
+    private static final class InFlight {
+        private RequestType type;
+        private RequestType lastType;
+        private long startNanos;
+        private long bytesSent;
+        private long bytesReceived;
+        private String errorCode;
+    }
+
+    /**
+     * The metrics of one type of request, also exposed as a read-only MBean.
+     */
+    static final class RequestMetrics implements DynamicMBean {
+
+        private static final String[] ATTRIBUTES = {
+                "Requests", "Errors", "Retries", "BytesSent", "BytesReceived",
+                "MeanLatencyMillis", "P50LatencyMillis", "P99LatencyMillis", "P999LatencyMillis", "MaxLatencyMillis", "ErrorCodes" };
+
+        private final RequestType type;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+        private final Map<String, LongAdder> errorCodes = new ConcurrentHashMap<>();
+
+        private RequestMetrics(RequestType type) {
+            this.type = type;
+        }
+
+        /**
+         * @return The latencies of the requests, including failed ones.
+         */
+        LatencyHistogram getLatencies() {
+            return this.latencies;
+        }
+
+        long getRequests() {
+            return this.requests.sum();
+        }
+
+        long getErrors() {
+            return this.errors.sum();
+        }
+
+        long getRetries() {
+            return this.retries.sum();
+        }
+
+        long getBytesSent() {
+            return this.bytesSent.sum();
+        }
+
+        long getBytesReceived() {
+            return this.bytesReceived.sum();
+        }
+
+        /**
+         * @return The number of failed requests per error code, sorted by code.
+         */
+        Map<String, Long> getErrorCodes() {
+            Map<String, Long> counts = new TreeMap<>();
+            for (Map.Entry<String, LongAdder> entry : this.errorCodes.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue().sum());
+            }
+            return counts;
+        }
+
+        ObjectName getObjectName() throws JMException {
+            return new ObjectName(JMX_DOMAIN, "RequestType", this.type.name());
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            switch (attribute) {
+                case "Requests":
+                    return getRequests();
+                case "Errors":
+                    return getErrors();
+                case "Retries":
+                    return getRetries();
+                case "BytesSent":
+                    return getBytesSent();
+                case "BytesReceived":
+                    return getBytesReceived();
+                case "MeanLatencyMillis":
+                    return this.latencies.getMeanNanos() / 1e6;
+                case "P50LatencyMillis":
+                    return this.latencies.getPercentileMillis(50);
+                case "P99LatencyMillis":
+                    return this.latencies.getPercentileMillis(99);
+                case "P999LatencyMillis":
+                    return this.latencies.getPercentileMillis(99.9);
+                case "MaxLatencyMillis":
+                    return this.latencies.getMaxNanos() / 1e6;
+                case "ErrorCodes":
+                    return getErrorCodes().toString();
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                }
+                catch (AttributeNotFoundException e) {
+                    // Unknown attributes are left out, as the contract allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("The metrics are read-only.");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "The MBean has no operations.");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[ATTRIBUTES.length];
+            for (int i = 0; i < ATTRIBUTES.length; i++) {
+                String attributeType = ATTRIBUTES[i].endsWith("Millis") ? "double" : ATTRIBUTES[i].equals("ErrorCodes") ? "java.lang.String" : "long";
+                attributes[i] = new MBeanAttributeInfo(ATTRIBUTES[i], attributeType, ATTRIBUTES[i], true, false, false);
+            }
+            return new MBeanInfo(RequestMetrics.class.getName(), "Metrics of " + this.type + " requests",
+                    attributes, null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
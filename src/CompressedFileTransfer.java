@@ -0,0 +1,304 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.FileRange;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Uploads files compressed and downloads them decompressed, so compressible content such as text and logs takes a
+ * fraction of the bytes on the wire and in the share.
+ *
+ * Uploads split the local file into chunks which the workers of a ParallelFileTransfer compress independently and in
+ * parallel, each into a buffer of its own. A chunk's place in the cloud file is only known once every chunk before it
+ * is compressed, so the chunks take their offsets in order, after which they are uploaded in parallel again. The
+ * compressed chunks together form a single stream of the codec, which is recorded as the file's Content-Encoding and
+ * in its metadata along with the uncompressed length. The MD5 of the stored bytes is set as the Content-MD5.
+ *
+ * Downloads stream the file through the SDK's read-ahead and decompress it on the fly, so memory stays bounded by the
+ * read-ahead and the codec's buffers whatever the size of the file.
+ */
+class CompressedFileTransfer {
+
+    /**
+     * The metadata entry recording the codec the file content was compressed with.
+     */
+    static final String COMPRESSION_METADATA = "compression";
+
+    /**
+     * The metadata entry recording the length of the file content before compression.
+     */
+    static final String UNCOMPRESSED_LENGTH_METADATA = "uncompressedlength";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final CompressionCodec codec;
+    private final ParallelFileTransfer transfer;
+    private final Map<String, CompressionCodec> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a transfer which compresses with gzip in chunks of the largest range size and with the default concurrency.
+     */
+    CompressedFileTransfer() {
+        this(new GzipCodec(), new ParallelFileTransfer());
+    }
+
+    /**
+     * Creates a transfer which compresses with the given codec.
+     *
+     * @param codec The codec uploads compress with. Downloads also decode it.
+     * @param transfer The transfer whose range size is the size of the uncompressed chunks, and whose concurrency
+     *                 is the number of chunks compressed and uploaded at the same time. With a limiter, only the
+     *                 range uploads hold its permits, never a chunk waiting for its offset.
+     */
+    CompressedFileTransfer(CompressionCodec codec, ParallelFileTransfer transfer) {
+        this.codec = codec;
+        this.transfer = transfer;
+        register(new GzipCodec());
+        register(codec);
+    }
+
+    /**
+     * Adds a codec which downloads can decode, for files uploaded with another codec than this transfer's own.
+     *
+     * @param codec The codec, replacing any codec registered with the same name.
+     */
+    void register(CompressionCodec codec) {
+        this.codecs.put(codec.getName().toLowerCase(Locale.US), codec);
+    }
+
+    /**
+     * Compresses and uploads a local file. The properties and metadata already set on the file reference are kept,
+     * except for the Content-Encoding and Content-MD5 which describe the compressed content.
+     *
+     * @param file The cloud file to upload to. It is created, or replaced if it exists.
+     * @param source The local file to upload.
+     * @return The statistics of the transfer, which count the compressed bytes.
+     *
+     * @throws StorageException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    TransferStatistics upload(final CloudFile file, File source) throws StorageException, IOException, InterruptedException {
+
+        long length = source.length();
+        List<FileRange> chunks = ParallelFileTransfer.planRanges(length, this.transfer.getRangeSize());
+        if (chunks.isEmpty()) {
+            // Even empty content gets a compressed stream, so it decodes like any other
+            chunks = Collections.singletonList(new FileRange(0, -1));
+        }
+
+        // The file is created at the largest size the chunks can compress to and cut to their actual size at the end
+        long maxLength = 0;
+        for (FileRange chunk : chunks) {
+            maxLength += this.codec.getMaxCompressedLength(chunkLength(chunk));
+        }
+        file.getProperties().setContentEncoding(this.codec.getName());
+        file.getProperties().setContentMD5(null);
+        file.getMetadata().put(COMPRESSION_METADATA, this.codec.getName());
+        file.getMetadata().put(UNCOMPRESSED_LENGTH_METADATA, Long.toString(length));
+        file.create(maxLength);
+
+        final ChunkSequence sequence = new ChunkSequence();
+        final OrderedDigest digest = this.transfer.newDigest();
+        final ThreadLocal<ChunkBuffer> compressed = new ThreadLocal<>();
+        final AdaptiveConcurrencyLimiter limiter = this.transfer.getLimiter();
+
+        // A chunk waits for the chunks before it while it holds no permit, or a worker waiting for its offset could
+        // hold the last permit the worker of an earlier chunk needs, so the workers run outside the limiter
+        ParallelFileTransfer workers = new ParallelFileTransfer(this.transfer.getRangeSize(), this.transfer.getConcurrency());
+        TransferStatistics statistics;
+        try (final FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            statistics = workers.transferRanges(chunks, new ParallelFileTransfer.RangeOperation() {
+                @Override
+                public long execute(FileRange chunk, byte[] buffer) throws Exception {
+                    try {
+                        int chunkLength = chunkLength(chunk);
+                        ParallelFileTransfer.readFully(channel, chunk.getStartOffset(), buffer, chunkLength);
+
+                        ChunkBuffer output = compressed.get();
+                        if (output == null) {
+                            output = new ChunkBuffer(codec.getMaxCompressedLength(transfer.getRangeSize()));
+                            compressed.set(output);
+                        }
+                        output.reset();
+                        try (OutputStream compressing = codec.compress(output)) {
+                            compressing.write(buffer, 0, chunkLength);
+                        }
+
+                        int index = (int) (chunk.getStartOffset() / buffer.length);
+                        long offset = sequence.place(index, output.size());
+                        digest.update(index, offset, output.getBuffer(), output.size());
+                        for (int start = 0; start < output.size(); start += ParallelFileTransfer.MAX_RANGE_SIZE) {
+                            int rangeLength = Math.min(ParallelFileTransfer.MAX_RANGE_SIZE, output.size() - start);
+                            if (limiter != null) {
+                                limiter.acquire();
+                            }
+                            try {
+                                file.uploadRange(new ByteArrayInputStream(output.getBuffer(), start, rangeLength), offset + start, rangeLength);
+                            }
+                            finally {
+                                if (limiter != null) {
+                                    limiter.release();
+                                }
+                            }
+                        }
+                        return output.size();
+                    }
+                    catch (Exception e) {
+                        sequence.abort(e);
+                        digest.abort();
+                        throw e;
+                    }
+                }
+            });
+        }
+
+        file.resize(sequence.getLength());
+        ParallelFileTransfer.storeContentMD5(file, digest.finish(sequence.getLength()));
+        return statistics;
+    }
+
+    /**
+     * Downloads a cloud file to a local file, decompressing it if it was uploaded compressed.
+     *
+     * @param file The cloud file to download.
+     * @param destination The local file to write to. It is created or truncated.
+     * @return The number of bytes written to the local file.
+     *
+     * @throws StorageException
+     * @throws IOException
+     */
+    long download(CloudFile file, File destination) throws StorageException, IOException {
+        try (InputStream input = openRead(file);
+             OutputStream output = new FileOutputStream(destination)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long written = 0;
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+                written += read;
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Opens a stream which reads the content of a cloud file, decompressing it as it is read if the file was uploaded
+     * compressed. The stream is pinned to the version of the file seen when it is opened, and the SDK checks the
+     * stored bytes against the Content-MD5 when they have all been read.
+     *
+     * @param file The cloud file to read.
+     * @return The stream of the uncompressed content.
+     *
+     * @throws StorageException
+     * @throws IOException If the file was compressed with a codec which isn't registered.
+     */
+    InputStream openRead(CloudFile file) throws StorageException, IOException {
+        InputStream input = file.openRead();
+
+        // The metadata rather than the Content-Encoding decides, since the latter is also used for character sets
+        String name = file.getMetadata().get(COMPRESSION_METADATA);
+        if (name == null) {
+            return input;
+        }
+
+        CompressionCodec fileCodec = this.codecs.get(name.toLowerCase(Locale.US));
+        if (fileCodec == null) {
+            input.close();
+            throw new IOException(String.format("The file %s is compressed with %s, for which no codec is registered.", file.getName(), name));
+        }
+        return fileCodec.decompress(input);
+    }
+
+    private static int chunkLength(FileRange chunk) {
+        return (int) (chunk.getEndOffset() - chunk.getStartOffset() + 1);
+    }
+
+    /**
+     * Gives the compressed chunks their offsets in the cloud file, in the order of the chunks.
+     */
+    private static final class ChunkSequence {
+
+        private int nextIndex;
+        private long length;
+        private Exception failure;
+
+        /**
+         * Waits until every earlier chunk has its offset, then places the chunk right after them.
+         *
+         * @return The offset of the chunk in the cloud file.
+         *
+         * @throws Exception The failure of another chunk, if the transfer failed while waiting.
+         */
+        synchronized long place(int index, int compressedLength) throws Exception {
+            while (index != this.nextIndex && this.failure == null) {
+                wait();
+            }
+            if (this.failure != null) {
+                throw this.failure;
+            }
+
+            long offset = this.length;
+            this.length += compressedLength;
+            this.nextIndex++;
+            notifyAll();
+            return offset;
+        }
+
+        /**
+         * Releases the chunks waiting for their offset with the failure of another chunk.
+         */
+        synchronized void abort(Exception failure) {
+            if (this.failure == null) {
+                this.failure = failure;
+            }
+            notifyAll();
+        }
+
+        synchronized long getLength() {
+            return this.length;
+        }
+    }
+
+    /**
+     * A reusable buffer for one compressed chunk, sized up front so it never grows.
+     */
+    private static final class ChunkBuffer extends ByteArrayOutputStream {
+
+        ChunkBuffer(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return this.buf;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression format for the content of files, named by the token it has in the Content-Encoding property.
+ *
+ * CompressedFileTransfer compresses the chunks of a file independently and stores them one after the other, so the
+ * format must decode a concatenation of independently compressed streams as a single stream, as gzip members and
+ * zstd or LZ4 frames do.
+ */
+interface CompressionCodec {
+
+    /**
+     * @return The content coding of the format, such as gzip, stored as the file's Content-Encoding.
+     */
+    String getName();
+
+    /**
+     * Returns the largest size the compressed form of the given number of bytes can take, including the framing of
+     * a whole compressed stream, so the buffers of the chunks never have to grow.
+     *
+     * @param length The number of bytes to compress.
+     * @return The largest compressed size in bytes.
+     */
+    int getMaxCompressedLength(int length);
+
+    /**
+     * Returns a stream which compresses what is written to it into a complete compressed stream when it is closed.
+     *
+     * @param output The stream which receives the compressed bytes. It is closed along with the returned stream.
+     * @return The compressing stream.
+     *
+     * @throws IOException
+     */
+    OutputStream compress(OutputStream output) throws IOException;
+
+    /**
+     * Returns a stream which decompresses the input as it is read, across any number of concatenated streams.
+     *
+     * @param input The stream of compressed bytes. It is closed along with the returned stream.
+     * @return The decompressing stream.
+     *
+     * @throws IOException
+     */
+    InputStream decompress(InputStream input) throws IOException;
+}
@@ -0,0 +1,386 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.CopyState;
+import com.microsoft.azure.storage.file.CopyStatus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many server-side copies under a concurrency cap and tracks them until they end.
+ *
+ * Each copy is polled soon after it starts, since small copies usually finish within a few hundred milliseconds,
+ * and then with an exponentially growing interval, so long copies do not waste requests. Copies beyond the cap
+ * wait in a queue and start as earlier ones finish. A single timer thread only schedules the polls; starts, polls
+ * and aborts are issued from a pool with one thread per pending copy, so copies start in parallel. The requests of
+ * one copy are chained, so its start and polls are always issued in order, and an abort waits for the start.
+ */
+class CopyScheduler implements AutoCloseable {
+
+    static final int DEFAULT_MAX_PENDING_COPIES = 32;
+
+    static final long INITIAL_POLL_INTERVAL_MILLIS = 50;
+
+    static final long MAX_POLL_INTERVAL_MILLIS = 10000;
+
+    private final int maxPendingCopies;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+    private final Queue<Copy> waiting = new ArrayDeque<>();
+    private final Set<Copy> starting = ConcurrentHashMap.newKeySet();
+    private final Map<String, Copy> copies = new ConcurrentHashMap<>();
+    private int running;
+    private volatile boolean closed;
+
+    /**
+     * Creates a scheduler with the default cap on pending copies.
+     */
+    CopyScheduler() {
+        this(DEFAULT_MAX_PENDING_COPIES);
+    }
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param maxPendingCopies The maximum number of copies pending on the service at the same time, which is also
+     *                         the number of threads issuing requests.
+     */
+    CopyScheduler(int maxPendingCopies) {
+        this(maxPendingCopies, null);
+    }
+
+    /**
+     * Creates a scheduler whose start, poll and abort requests are also held to the limit of an adaptive limiter.
+     *
+     * @param maxPendingCopies The maximum number of copies pending on the service at the same time, which is also
+     *                         the number of threads issuing requests.
+     * @param limiter Holds each request to its adaptive limit. May be null.
+     */
+    CopyScheduler(int maxPendingCopies, AdaptiveConcurrencyLimiter limiter) {
+        if (maxPendingCopies <= 0) {
+            throw new IllegalArgumentException("The maximum number of pending copies must be positive.");
+        }
+
+        this.maxPendingCopies = maxPendingCopies;
+        this.limiter = limiter;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "copy-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.workers = Executors.newFixedThreadPool(maxPendingCopies, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "copy-scheduler-" + this.count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Schedules a server-side copy of the source file into the destination file.
+     *
+     * @param source The file to copy from.
+     * @param destination The file to copy to.
+     * @return A future completed with the final copy state once the copy is no longer pending, whether it
+     *         succeeded, failed or was aborted. It completes exceptionally if a request fails or the scheduler is
+     *         closed first.
+     */
+    CompletableFuture<CopyState> startCopy(CloudFile source, CloudFile destination) {
+        Copy copy = new Copy(source, destination);
+
+        synchronized (this) {
+            if (this.closed) {
+                copy.future.completeExceptionally(closedException());
+            }
+            else if (this.running < this.maxPendingCopies) {
+                this.running++;
+                submitStart(copy);
+            }
+            else {
+                this.waiting.add(copy);
+            }
+        }
+        return copy.future;
+    }
+
+    /**
+     * Aborts the copies into the destination file. Copies which have not been started yet are simply dropped, and
+     * copies whose start request is still in flight are aborted once it returns.
+     *
+     * @param destination The destination of the copies to abort.
+     * @return A future completed with true if a copy was aborted, or false if none was pending.
+     */
+    CompletableFuture<Boolean> abortCopy(CloudFile destination) {
+        final String uri = destination.getUri().toString();
+        final List<CompletableFuture<Boolean>> aborts = new ArrayList<>();
+
+        synchronized (this) {
+            for (Iterator<Copy> it = this.waiting.iterator(); it.hasNext();) {
+                Copy copy = it.next();
+                if (copy.uri.equals(uri)) {
+                    it.remove();
+                    copy.future.cancel(false);
+                    aborts.add(CompletableFuture.completedFuture(true));
+                }
+            }
+        }
+
+        // A copy moves into the map keyed by copy ID before it leaves the starting set, so scanning in this order
+        // sees every copy at least once
+        Set<Copy> matches = new LinkedHashSet<>();
+        for (Copy copy : this.starting) {
+            if (copy.uri.equals(uri)) {
+                matches.add(copy);
+            }
+        }
+        for (Copy copy : this.copies.values()) {
+            if (copy.uri.equals(uri)) {
+                matches.add(copy);
+            }
+        }
+        for (final Copy copy : matches) {
+            aborts.add(copy.started.handleAsync((copyId, failure) -> failure == null && abort(copy, copyId), this.workers));
+        }
+
+        return CompletableFuture.allOf(aborts.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            boolean aborted = false;
+            for (CompletableFuture<Boolean> abort : aborts) {
+                aborted |= abort.join();
+            }
+            return aborted;
+        });
+    }
+
+    /**
+     * Stops the scheduler and completes the futures of all copies it still tracks exceptionally. Copies already
+     * started keep running on the service but are no longer tracked.
+     */
+    @Override
+    public void close() {
+        List<Copy> outstanding = new ArrayList<>();
+        synchronized (this) {
+            this.closed = true;
+            outstanding.addAll(this.waiting);
+            this.waiting.clear();
+        }
+        this.timer.shutdownNow();
+        this.workers.shutdownNow();
+
+        outstanding.addAll(this.starting);
+        outstanding.addAll(this.copies.values());
+        for (Copy copy : outstanding) {
+            copy.started.completeExceptionally(closedException());
+            copy.future.completeExceptionally(closedException());
+        }
+    }
+
+    private void submitStart(final Copy copy) {
+        this.starting.add(copy);
+        execute(copy, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquire();
+                    try {
+                        copy.copyId = copy.destination.startCopy(copy.source);
+                    }
+                    finally {
+                        release();
+                    }
+                    copies.put(copy.copyId, copy);
+                    starting.remove(copy);
+                    copy.started.complete(copy.copyId);
+                    checkState(copy);
+                }
+                catch (Exception e) {
+                    starting.remove(copy);
+                    copy.started.completeExceptionally(e);
+                    finish(copy, e);
+                }
+            }
+        });
+    }
+
+    private void poll(final Copy copy) {
+        final Runnable request = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquire();
+                    try {
+                        copy.destination.downloadAttributes();
+                    }
+                    finally {
+                        release();
+                    }
+                    checkState(copy);
+                }
+                catch (Exception e) {
+                    finish(copy, e);
+                }
+            }
+        };
+
+        long delayMillis = copy.pollIntervalMillis;
+        copy.pollIntervalMillis = Math.min(copy.pollIntervalMillis * 2, MAX_POLL_INTERVAL_MILLIS);
+        try {
+            this.timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    execute(copy, request);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            copy.future.completeExceptionally(closedException());
+        }
+    }
+
+    private void execute(Copy copy, Runnable request) {
+        try {
+            this.workers.execute(request);
+        }
+        catch (RejectedExecutionException e) {
+            copy.future.completeExceptionally(closedException());
+        }
+    }
+
+    /**
+     * Aborts a started copy with a reference of its own, since the destination object is updated by polls.
+     */
+    private boolean abort(Copy copy, String copyId) {
+        if (copy.future.isDone()) {
+            return false;
+        }
+        try {
+            acquire();
+            try {
+                copy.abortTarget.abortCopy(copyId);
+            }
+            finally {
+                release();
+            }
+            return true;
+        }
+        catch (StorageException ex) {
+            if ("NoPendingCopyOperation".equals(ex.getErrorCode())) {
+                return false;
+            }
+            throw new CompletionException(ex);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(ex);
+        }
+    }
+
+    private void acquire() throws InterruptedException {
+        if (this.limiter != null) {
+            this.limiter.acquire();
+        }
+    }
+
+    private void release() {
+        if (this.limiter != null) {
+            this.limiter.release();
+        }
+    }
+
+    private void checkState(Copy copy) {
+        CopyState state = copy.destination.getCopyState();
+        if (state == null || state.getStatus() == CopyStatus.PENDING) {
+            poll(copy);
+        }
+        else {
+            finish(copy, null);
+        }
+    }
+
+    private void finish(Copy copy, Exception failure) {
+        if (copy.copyId != null) {
+            this.copies.remove(copy.copyId, copy);
+        }
+        if (failure != null) {
+            copy.future.completeExceptionally(failure);
+        }
+        else {
+            copy.future.complete(copy.destination.getCopyState());
+        }
+
+        synchronized (this) {
+            Copy next = this.closed ? null : this.waiting.poll();
+            if (next != null) {
+                submitStart(next);
+            }
+            else {
+                this.running--;
+            }
+        }
+    }
+
+    private static IllegalStateException closedException() {
+        return new IllegalStateException("The copy scheduler was closed.");
+    }
+
+    /**
+     * A copy and its polling state. Its requests are chained one after another, so the polling state needs no
+     * locking.
+     */
+    private static final class Copy {
+
+        private final CloudFile source;
+        private final CloudFile destination;
+        private final CloudFile abortTarget;
+        private final String uri;
+        private final CompletableFuture<String> started = new CompletableFuture<>();
+        private final CompletableFuture<CopyState> future = new CompletableFuture<>();
+        private volatile String copyId;
+        private long pollIntervalMillis = INITIAL_POLL_INTERVAL_MILLIS;
+
+        Copy(CloudFile source, CloudFile destination) {
+            this.source = source;
+            this.destination = destination;
+            this.abortTarget = new CloudFile(destination);
+            this.uri = destination.getUri().toString();
+        }
+    }
+}
@@ -14,16 +14,57 @@
  */
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Random data generator methods.
  */
 class DataGenerator {
 
+    /**
+     * The kinds of content a generated file can have.
+     */
+    enum Content {
+        /** Uniformly random bytes, which do not compress. */
+        RANDOM,
+        /** Words of a small vocabulary separated by spaces, which compress several times over. */
+        COMPRESSIBLE,
+        /** Blocks of BLOCK_SIZE bytes, three quarters of them zeros and the rest random. */
+        ZERO_HEAVY,
+        /** The same bytes as ZERO_HEAVY, with the zero blocks left as holes of a sparse file. */
+        SPARSE
+    }
+
+    /**
+     * Content is generated in blocks of this size. A block's bytes depend only on the seed and the block's index,
+     * never on the thread which generated it or on how much was generated before, so any part of a file can be
+     * produced on its own.
+     */
+    static final int BLOCK_SIZE = ParallelFileTransfer.DEFAULT_ZERO_BLOCK_SIZE;
+
+    /**
+     * Files are written in chunks of this size, one chunk per thread at a time.
+     */
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final byte[][] WORDS = words("the of and to in is that for it as was with be by on not he this are or his from at which "
+            + "but have an they you were her she there been one all we their has would when if so no will can more other "
+            + "file share range copy upload download directory storage");
+
     /**
      * Creates and returns a randomized name based on the prefix file for use by the sample.
      *
@@ -36,7 +77,7 @@ class DataGenerator {
     }
 
     /**
-     * Creates and returns a temporary local file for use by the sample.
+     * Creates and returns a temporary local file of random bytes for use by the sample.
      *
      * @param tempFileNamePrefix The prefix string to be used in generating the file's name.
      * @param tempFileNameSuffix The suffix string to be used in generating the file's name.
@@ -46,34 +87,225 @@ class DataGenerator {
      */
     static File createTempLocalFile(String tempFileNamePrefix, String tempFileNameSuffix, int bytesToWrite) throws IOException, IllegalArgumentException{
 
-        File tempFile = null;
-        FileOutputStream tempFileOutputStream = null;
-        try {
-            // Create the temporary file
-            tempFile = File.createTempFile(tempFileNamePrefix, tempFileNameSuffix);
-
-            // Write random bytes to the file if requested
-            Random random = new Random();
-            byte[] randomBytes = new byte[4096];
-            tempFileOutputStream = new FileOutputStream(tempFile);
-            while (bytesToWrite > 0) {
-                random.nextBytes(randomBytes);
-                tempFileOutputStream.write(randomBytes, 0, (bytesToWrite > 4096) ? 4096 : bytesToWrite);
-                bytesToWrite -= 4096;
+        return createTempLocalFile(tempFileNamePrefix, tempFileNameSuffix, Math.max(bytesToWrite, 0), Content.RANDOM, new Random().nextLong());
+    }
+
+    /**
+     * Creates and returns a temporary local file for use by the sample. The same length, content and seed
+     * always produce the same bytes, so fixtures can be recreated instead of stored.
+     *
+     * @param tempFileNamePrefix The prefix string to be used in generating the file's name.
+     * @param tempFileNameSuffix The suffix string to be used in generating the file's name.
+     * @param bytesToWrite The number of bytes to write to file.
+     * @param content The kind of content to write.
+     * @param seed The seed of the generated content.
+     * @return The newly created File object, which is deleted on exit.
+     *
+     * @throws IOException
+     */
+    static File createTempLocalFile(String tempFileNamePrefix, String tempFileNameSuffix, long bytesToWrite, Content content, long seed) throws IOException {
+
+        File tempFile = File.createTempFile(tempFileNamePrefix, tempFileNameSuffix);
+        tempFile.deleteOnExit();
+        writeFile(tempFile, bytesToWrite, content, seed);
+        return tempFile;
+    }
+
+    /**
+     * Replaces the content of a file with generated content, using all available cores.
+     *
+     * @param file The file to write. It is created if needed and truncated to the length.
+     * @param length The number of bytes to write.
+     * @param content The kind of content to write.
+     * @param seed The seed of the generated content.
+     *
+     * @throws IOException
+     */
+    static void writeFile(File file, final long length, final Content content, final long seed) throws IOException {
+        if (length < 0) {
+            throw new IllegalArgumentException("The length must not be negative.");
+        }
+
+        if (content == Content.SPARSE) {
+            ParallelFileTransfer.createSparse(file, length);
+        }
+        else {
+            ParallelFileTransfer.preallocate(file, length);
+        }
+
+        final long chunkCount = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final int threads = (int) Math.max(1, Math.min(chunkCount, Runtime.getRuntime().availableProcessors()));
+        final AtomicLong nextChunk = new AtomicLong();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(() -> {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                    long chunk;
+                    while ((chunk = nextChunk.getAndIncrement()) < chunkCount) {
+                        long position = chunk * CHUNK_SIZE;
+                        writeChunk(channel, position, (int) Math.min(CHUNK_SIZE, length - position), content, seed, buffer);
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<Void> worker : workers) {
+                try {
+                    worker.get();
+                }
+                catch (ExecutionException e) {
+                    nextChunk.set(chunkCount);
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while generating the file.", e);
+                }
             }
         }
         finally {
-            // Close the file output stream writer
-            if (tempFileOutputStream != null) {
-                tempFileOutputStream.close();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Generates one chunk into the buffer and writes it at its position. Zero blocks of sparse content are skipped.
+     */
+    private static void writeChunk(FileChannel channel, long position, int length, Content content, long seed, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        generate(buffer, content, seed, position);
+
+        if (content != Content.SPARSE) {
+            buffer.flip();
+            writeFully(channel, position, buffer);
+            return;
+        }
+
+        for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+            int blockEnd = Math.min(offset + BLOCK_SIZE, length);
+            buffer.limit(length);
+            if (!isZero(buffer, offset, blockEnd)) {
+                buffer.limit(blockEnd);
+                buffer.position(offset);
+                writeFully(channel, position + offset, buffer);
             }
+        }
+    }
 
-            // Set the temporary file to delete on exit
-            if (tempFile != null) {
-                tempFile.deleteOnExit();
+    /**
+     * Fills the buffer from its position to its limit with generated content, leaving the position at the limit.
+     * The bytes are those found at the offset of a file generated with the same content and seed, except that
+     * SPARSE content is generated like ZERO_HEAVY.
+     *
+     * @param buffer The buffer to fill.
+     * @param content The kind of content.
+     * @param seed The seed of the whole file.
+     * @param offset The offset within the file of the first byte to generate. It must be a multiple of BLOCK_SIZE.
+     */
+    static void generate(ByteBuffer buffer, Content content, long seed, long offset) {
+        if (offset % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("The offset must be a multiple of the block size.");
+        }
+
+        int end = buffer.limit();
+        for (long block = offset / BLOCK_SIZE; buffer.position() < end; block++) {
+            SplittableRandom random = new SplittableRandom(blockSeed(seed, block));
+            buffer.limit(Math.min(buffer.position() + BLOCK_SIZE, end));
+            switch (content) {
+                case RANDOM:
+                    fillRandom(buffer, random);
+                    break;
+                case COMPRESSIBLE:
+                    fillWords(buffer, random);
+                    break;
+                case ZERO_HEAVY:
+                case SPARSE:
+                    if (random.nextInt(4) != 0) {
+                        while (buffer.remaining() >= 8) {
+                            buffer.putLong(0);
+                        }
+                        while (buffer.hasRemaining()) {
+                            buffer.put((byte) 0);
+                        }
+                    }
+                    else {
+                        fillRandom(buffer, random);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException(content.name());
             }
         }
+        buffer.limit(end);
+    }
 
-        return tempFile;
+    private static boolean isZero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void fillRandom(ByteBuffer buffer, SplittableRandom random) {
+        while (buffer.remaining() >= 8) {
+            buffer.putLong(random.nextLong());
+        }
+        // Take the tail from the high end, as putLong would, so a shorter buffer gets a prefix of a longer one
+        long last = random.nextLong();
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) (last >>> 56));
+            last <<= 8;
+        }
+    }
+
+    private static void fillWords(ByteBuffer buffer, SplittableRandom random) {
+        while (buffer.hasRemaining()) {
+            byte[] word = WORDS[random.nextInt(WORDS.length)];
+            buffer.put(word, 0, Math.min(word.length, buffer.remaining()));
+            if (buffer.hasRemaining()) {
+                buffer.put(random.nextInt(16) == 0 ? (byte) '\n' : (byte) ' ');
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Derives the seed of a block from the file's seed with the SplitMix64 finalizer, so neighbouring blocks
+     * get unrelated streams.
+     */
+    private static long blockSeed(long seed, long block) {
+        long z = seed + (block + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static byte[][] words(String text) {
+        String[] split = text.split(" ");
+        byte[][] words = new byte[split.length][];
+        for (int i = 0; i < split.length; i++) {
+            words[i] = split[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return words;
     }
 }
@@ -0,0 +1,199 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.FileRange;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Uploads only the ranges of a local file which changed since the last upload.
+ *
+ * The hash of every range is kept in a manifest in a local directory, one per cloud file, so nothing but the file
+ * itself is written to the share and tree operations never see the manifests. A file's hashes don't fit in its
+ * metadata, which is limited to 8 KB, and writing metadata would also change the ETag of a file which had no changed
+ * range. The manifest records the URI of the cloud file and the ETag it had right after the upload which wrote it,
+ * so changes made to the cloud file by anyone else invalidate the manifest and fall back to a full upload, as does a
+ * lost manifest.
+ */
+class DeltaFileUploader {
+
+    /**
+     * The suffix of the manifest files in the manifest directory.
+     */
+    static final String MANIFEST_SUFFIX = ".rangemanifest";
+
+    private final ParallelFileTransfer transfer;
+    private final File manifestDirectory;
+
+    /**
+     * Creates an uploader which keeps its manifests in the rangemanifests directory of the temporary directory.
+     *
+     * @param transfer The transfer which defines the range size and the concurrency.
+     */
+    DeltaFileUploader(ParallelFileTransfer transfer) {
+        this(transfer, new File(System.getProperty("java.io.tmpdir"), "rangemanifests"));
+    }
+
+    /**
+     * Creates an uploader which transfers the changed ranges with the given parallel transfer.
+     *
+     * @param transfer The transfer which defines the range size and the concurrency.
+     * @param manifestDirectory The local directory holding the manifests, which is created when needed.
+     */
+    DeltaFileUploader(ParallelFileTransfer transfer, File manifestDirectory) {
+        this.transfer = transfer;
+        this.manifestDirectory = manifestDirectory;
+    }
+
+    /**
+     * Uploads the local file, sending only the ranges whose hash differs from the manifest of the previous upload.
+     *
+     * @param file The cloud file to upload to.
+     * @param source The local file to upload.
+     * @return The statistics of the transfer. Only the bytes of changed ranges are counted.
+     *
+     * @throws StorageException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    TransferStatistics upload(final CloudFile file, File source) throws StorageException, IOException, InterruptedException {
+
+        long length = source.length();
+        int rangeSize = this.transfer.getRangeSize();
+        Path manifestFile = getManifestPath(file);
+
+        // Only trust the manifest if it describes the current version of the file with the same range size
+        String[] previous = null;
+        if (file.exists()) {
+            List<String> manifest = readManifest(manifestFile);
+            if (manifest != null && manifest.size() >= 3
+                    && manifest.get(0).equals(file.getUri().toString())
+                    && manifest.get(1).equals(file.getProperties().getEtag())
+                    && manifest.get(2).equals(Integer.toString(rangeSize))) {
+                previous = manifest.subList(3, manifest.size()).toArray(new String[0]);
+            }
+            if (file.getProperties().getLength() != length) {
+                file.resize(length);
+            }
+        }
+        else {
+            file.create(length);
+        }
+
+        final String[] previousHashes = previous;
+        List<FileRange> ranges = ParallelFileTransfer.planRanges(length, rangeSize);
+        final String[] hashes = new String[ranges.size()];
+        OrderedDigest digest = this.transfer.newDigest();
+        TransferStatistics statistics;
+        try (final FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            statistics = this.transfer.transferRanges(ranges, new ParallelFileTransfer.RangeOperation() {
+                @Override
+                public long execute(FileRange range, byte[] buffer) throws Exception {
+                    int rangeLength = (int) (range.getEndOffset() - range.getStartOffset() + 1);
+                    int index = (int) (range.getStartOffset() / buffer.length);
+                    ParallelFileTransfer.readFully(channel, range.getStartOffset(), buffer, rangeLength);
+                    hashes[index] = hash(buffer, rangeLength);
+
+                    if (previousHashes != null && index < previousHashes.length && hashes[index].equals(previousHashes[index])) {
+                        return 0;
+                    }
+                    file.uploadRange(new ByteArrayInputStream(buffer, 0, rangeLength), range.getStartOffset(), rangeLength);
+                    return rangeLength;
+                }
+            }, digest);
+        }
+
+        // Unchanged ranges are still read locally, so the MD5 of the whole file comes without another pass
+        ParallelFileTransfer.storeContentMD5(file, digest.finish(length));
+
+        // The ETag after the last range is what the next upload has to find for the manifest to be valid
+        file.downloadAttributes();
+        List<String> manifest = new ArrayList<>(hashes.length + 3);
+        manifest.add(file.getUri().toString());
+        manifest.add(file.getProperties().getEtag());
+        manifest.add(Integer.toString(rangeSize));
+        manifest.addAll(Arrays.asList(hashes));
+        writeManifest(manifestFile, manifest);
+
+        return statistics;
+    }
+
+    /**
+     * Returns the path of the manifest which belongs to the given cloud file, named after the SHA-256 of its URI.
+     */
+    Path getManifestPath(CloudFile file) {
+        byte[] uriHash;
+        try {
+            uriHash = MessageDigest.getInstance("SHA-256").digest(file.getUri().toString().getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        StringBuilder name = new StringBuilder();
+        for (byte b : uriHash) {
+            name.append(String.format("%02x", b));
+        }
+        return new File(this.manifestDirectory, name + MANIFEST_SUFFIX).toPath();
+    }
+
+    /**
+     * Reads the manifest lines, or returns null if there is no manifest.
+     */
+    private static List<String> readManifest(Path manifestFile) throws IOException {
+        try {
+            return Files.readAllLines(manifestFile, StandardCharsets.UTF_8);
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the manifest, writing it aside first so an interrupted write leaves the old one.
+     */
+    private static void writeManifest(Path manifestFile, List<String> lines) throws IOException {
+        Files.createDirectories(manifestFile.getParent());
+        Path temporary = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        Files.write(temporary, lines, StandardCharsets.UTF_8);
+        Files.move(temporary, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Computes the Base64 encoded MD5 hash of the first length bytes of the buffer.
+     */
+    static String hash(byte[] buffer, int length) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(buffer, 0, length);
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+}
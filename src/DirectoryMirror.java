@@ -0,0 +1,460 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.CloudFileDirectory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Makes a directory of a share match a local directory, uploading only what changed since the last mirror.
+ *
+ * The local tree is walked on its own thread while the remote tree is listed concurrently. A local file is taken
+ * as unchanged when its size and modification time match the manifest written by the previous mirror, and the
+ * remote file still has the size recorded there; everything else is uploaded. The manifest is a local file which
+ * records, for every file in sync, the local size and modification time and the ETag the remote file had right
+ * after its upload. Listings don't return ETags, so checking them costs one request per file and is optional.
+ *
+ * Missing directories are created level by level, shallowest first, with every directory of a level created
+ * concurrently. Files are then uploaded on a bounded pool, small ones with a single range request and large ones
+ * with a ParallelFileTransfer. Remote files and directories which don't exist locally can be deleted as well.
+ * Failures of individual items are counted in the progress and leave the items out of the manifest, so the next
+ * mirror tries them again.
+ */
+class DirectoryMirror {
+
+    static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    /**
+     * The first line of a manifest, followed by the URI of the remote directory it belongs to.
+     */
+    private static final String MANIFEST_HEADER = "directorymirror 1";
+
+    /**
+     * The length recorded for the remote items which are directories.
+     */
+    private static final long DIRECTORY = -1;
+
+    private final int maxInFlight;
+    private final ParallelFileTransfer transfer;
+    private final boolean verifyETags;
+    private final DirectoryTreeWalker walker;
+
+    /**
+     * Creates a mirror with the default parallelism, which trusts the sizes listed for the remote files.
+     */
+    DirectoryMirror() {
+        this(DEFAULT_MAX_IN_FLIGHT, new ParallelFileTransfer(), false);
+    }
+
+    /**
+     * Creates a mirror.
+     *
+     * @param maxInFlight The maximum number of files and directories being created, uploaded or deleted at the same time.
+     * @param transfer The transfer which uploads the files larger than its range size. Each of those uploads adds
+     *                 up to the transfer's concurrency in range requests.
+     * @param verifyETags Whether to read the attributes of every remote file which looks unchanged and upload it
+     *                    again if its ETag differs from the manifest, which catches remote changes that kept the size.
+     */
+    DirectoryMirror(int maxInFlight, ParallelFileTransfer transfer, boolean verifyETags) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("The maximum number of in-flight operations must be positive.");
+        }
+
+        this.maxInFlight = maxInFlight;
+        this.transfer = transfer;
+        this.verifyETags = verifyETags;
+        this.walker = new DirectoryTreeWalker(Math.min(maxInFlight, DirectoryTreeWalker.DEFAULT_MAX_IN_FLIGHT_LISTINGS));
+    }
+
+    /**
+     * Mirrors the local directory to the remote directory.
+     *
+     * @param localRoot The local directory to mirror.
+     * @param remoteRoot The remote directory to make match it. It is created if it doesn't exist, but its parent must.
+     * @param manifestFile The manifest of the previous mirror between the same directories, which is replaced with
+     *                     the new one. A missing manifest, or one written for another remote directory, makes every
+     *                     file count as changed. It is never uploaded, even when it lives inside the local directory.
+     * @param deleteExtraneous Whether to delete the remote files and directories which don't exist locally.
+     * @param listener Called with the progress after each item, from worker threads. May be null.
+     * @return The final progress. Items already in sync count as skipped.
+     *
+     * @throws StorageException If the remote directory can't be created or listed.
+     * @throws IOException If the local directory can't be walked or the manifest can't be read or written.
+     * @throws InterruptedException
+     */
+    BulkProgress mirror(File localRoot, final CloudFileDirectory remoteRoot, File manifestFile, boolean deleteExtraneous,
+                        final Consumer<BulkProgress> listener) throws StorageException, IOException, InterruptedException {
+
+        final BulkProgress progress = new BulkProgress();
+        final Map<String, Entry> manifest = readManifest(manifestFile, remoteRoot);
+        final Map<String, Entry> synced = new ConcurrentHashMap<>();
+
+        remoteRoot.createIfNotExists();
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.maxInFlight);
+        try {
+            // Walk the local tree on one thread while the remote tree is listed on the walker's threads
+            Future<LocalTree> localWalk = executor.submit(() -> walkLocal(localRoot.toPath(), manifestFile.toPath()));
+            final Map<String, Long> remote = new ConcurrentHashMap<>();
+            this.walker.walk(remoteRoot, item -> remote.put(FilePathHelper.relativePath(remoteRoot, item),
+                    item instanceof CloudFile ? ((CloudFile) item).getProperties().getLength() : DIRECTORY));
+
+            final LocalTree local;
+            try {
+                local = localWalk.get();
+            }
+            catch (ExecutionException e) {
+                ParallelFileTransfer.rethrow(e.getCause());
+                throw new IllegalStateException(e);
+            }
+
+            Semaphore permits = new Semaphore(this.maxInFlight);
+
+            // Create the missing directories, parents before their children
+            Map<Integer, List<String>> levels = new TreeMap<>();
+            for (String path : local.directories) {
+                levels.computeIfAbsent(path.split("/").length, ignored -> new ArrayList<>()).add(path);
+            }
+            for (List<String> level : levels.values()) {
+                for (final String path : level) {
+                    progress.itemFound();
+                    final Long remoteLength = remote.get(path);
+                    if (remoteLength != null && remoteLength == DIRECTORY) {
+                        progress.itemSkipped();
+                        continue;
+                    }
+
+                    permits.acquire();
+                    executor.execute(() -> {
+                        try {
+                            CloudFileDirectory directory = FilePathHelper.getDirectoryReference(remoteRoot, path);
+                            if (remoteLength != null) {
+                                replaceConflict(FilePathHelper.getFileReference(remoteRoot, path), deleteExtraneous);
+                            }
+                            directory.create();
+                            progress.itemCompleted(0);
+                        }
+                        catch (StorageException | URISyntaxException | InterruptedException | RuntimeException e) {
+                            progress.itemFailed(e);
+                        }
+                        finally {
+                            permits.release();
+                            if (listener != null) {
+                                listener.accept(progress);
+                            }
+                        }
+                    });
+                }
+                permits.acquire(this.maxInFlight);
+                permits.release(this.maxInFlight);
+            }
+
+            // Upload the files which changed or are missing
+            for (final Map.Entry<String, Entry> file : local.files.entrySet()) {
+                progress.itemFound();
+                permits.acquire();
+                executor.execute(() -> {
+                    try {
+                        mirrorFile(local.root, remoteRoot, file.getKey(), file.getValue(), remote.get(file.getKey()),
+                                manifest.get(file.getKey()), deleteExtraneous, synced, progress);
+                    }
+                    catch (StorageException | URISyntaxException | IOException | InterruptedException | RuntimeException e) {
+                        progress.itemFailed(e);
+                    }
+                    finally {
+                        permits.release();
+                        if (listener != null) {
+                            listener.accept(progress);
+                        }
+                    }
+                });
+            }
+            permits.acquire(this.maxInFlight);
+            permits.release(this.maxInFlight);
+
+            // Delete what only exists remotely, each deleted directory taking everything below it
+            if (deleteExtraneous) {
+                for (final Map.Entry<String, Long> item : remote.entrySet()) {
+                    String path = item.getKey();
+                    String parent = FilePathHelper.parentPath(path);
+                    if (local.files.containsKey(path) || local.directories.contains(path)
+                            || (!parent.isEmpty() && !local.directories.contains(parent))) {
+                        // Kept, or below a directory which is deleted or replaced as a whole
+                        continue;
+                    }
+
+                    progress.itemFound();
+                    permits.acquire();
+                    executor.execute(() -> {
+                        try {
+                            deleteRemote(remoteRoot, item.getKey(), item.getValue());
+                            progress.itemCompleted(0);
+                        }
+                        catch (StorageException | URISyntaxException | InterruptedException | RuntimeException e) {
+                            progress.itemFailed(e);
+                        }
+                        finally {
+                            permits.release();
+                            if (listener != null) {
+                                listener.accept(progress);
+                            }
+                        }
+                    });
+                }
+                permits.acquire(this.maxInFlight);
+                permits.release(this.maxInFlight);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        writeManifest(manifestFile, remoteRoot, synced);
+        progress.complete();
+        return progress;
+    }
+
+    /**
+     * Uploads one local file unless it is in sync, and records it in the new manifest.
+     */
+    private void mirrorFile(Path localRoot, CloudFileDirectory remoteRoot, String path, Entry local, Long remoteLength,
+                            Entry previous, boolean deleteExtraneous, Map<String, Entry> synced, BulkProgress progress)
+            throws StorageException, URISyntaxException, IOException, InterruptedException {
+
+        CloudFile file = FilePathHelper.getFileReference(remoteRoot, path);
+        if (remoteLength != null && remoteLength == DIRECTORY) {
+            replaceConflict(FilePathHelper.getDirectoryReference(remoteRoot, path), deleteExtraneous);
+            remoteLength = null;
+        }
+
+        boolean unchanged = previous != null && remoteLength != null
+                && previous.size == local.size && previous.modified == local.modified && remoteLength == previous.size;
+        if (unchanged && this.verifyETags) {
+            try {
+                file.downloadAttributes();
+                unchanged = file.getProperties().getEtag().equals(previous.etag);
+            }
+            catch (StorageException e) {
+                if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                    throw e;
+                }
+                unchanged = false;
+            }
+        }
+        if (unchanged) {
+            synced.put(path, previous);
+            progress.itemSkipped();
+            return;
+        }
+
+        Path source = localRoot.resolve(path);
+        if (local.size <= this.transfer.getRangeSize()) {
+            // One create carrying the Content-MD5 and one range, without a pool of its own
+            byte[] content = Files.readAllBytes(source);
+            file.getProperties().setContentMD5(md5(content));
+            file.create(content.length);
+            if (content.length > 0) {
+                file.uploadRange(new ByteArrayInputStream(content), 0, content.length);
+            }
+        }
+        else {
+            this.transfer.upload(file, source.toFile());
+        }
+
+        // The size and time seen by the walk go into the manifest, so a file changed during its upload is sent again
+        synced.put(path, new Entry(local.size, local.modified, file.getProperties().getEtag()));
+        progress.itemCompleted(local.size);
+    }
+
+    private static String md5(byte[] content) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(content));
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Deletes a remote item which is in the way of a local item of the other kind, when deleting is allowed.
+     */
+    private static void replaceConflict(Object remoteItem, boolean deleteExtraneous) throws StorageException, InterruptedException {
+        if (!deleteExtraneous) {
+            throw new IllegalStateException(String.format("A remote %s is in the way and extraneous items are kept.",
+                    remoteItem instanceof CloudFile ? "file" : "directory"));
+        }
+        if (remoteItem instanceof CloudFile) {
+            ((CloudFile) remoteItem).deleteIfExists();
+        }
+        else {
+            deleteTree((CloudFileDirectory) remoteItem);
+        }
+    }
+
+    private static void deleteRemote(CloudFileDirectory remoteRoot, String path, long length) throws StorageException, URISyntaxException, InterruptedException {
+        if (length == DIRECTORY) {
+            deleteTree(FilePathHelper.getDirectoryReference(remoteRoot, path));
+        }
+        else {
+            FilePathHelper.getFileReference(remoteRoot, path).deleteIfExists();
+        }
+    }
+
+    private static void deleteTree(CloudFileDirectory directory) throws StorageException, InterruptedException {
+        BulkProgress deleted = new TreeDeleter(DirectoryTreeWalker.DEFAULT_MAX_IN_FLIGHT_LISTINGS).delete(directory, null);
+        if (deleted.getFailedCount() > 0) {
+            DirectoryTreeWalker.rethrow(deleted.getFirstFailure());
+        }
+    }
+
+    /**
+     * Collects the regular files and directories below the root, with '/' separated relative paths.
+     * Symbolic links and other special files are left out.
+     */
+    private static LocalTree walkLocal(final Path root, final Path manifest) throws IOException {
+        final LocalTree tree = new LocalTree(root);
+        final Path manifestPath = manifest.toAbsolutePath().normalize();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                if (!directory.equals(root)) {
+                    tree.directories.add(relativePath(root, directory));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && !file.toAbsolutePath().normalize().equals(manifestPath)) {
+                    tree.files.put(relativePath(root, file), new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), null));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return tree;
+    }
+
+    private static String relativePath(Path root, Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Reads the manifest, or returns an empty one if there is none or it belongs to another remote directory.
+     * Each line after the header holds a relative path, the local size and modification time, and the remote ETag,
+     * separated by tabs, which can't appear in the names of files in a share.
+     */
+    static Map<String, Entry> readManifest(File manifestFile, CloudFileDirectory remoteRoot) throws IOException {
+        Map<String, Entry> manifest = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!(MANIFEST_HEADER + "\t" + remoteRoot.getUri()).equals(reader.readLine())) {
+                return manifest;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 4) {
+                    manifest.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                }
+            }
+        }
+        catch (NoSuchFileException e) {
+            // No previous mirror
+        }
+        return manifest;
+    }
+
+    /**
+     * Replaces the manifest with the files in sync, writing it aside first so an interrupted write leaves the old one.
+     */
+    static void writeManifest(File manifestFile, CloudFileDirectory remoteRoot, Map<String, Entry> synced) throws IOException {
+        Path target = manifestFile.toPath().toAbsolutePath();
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            writer.write(MANIFEST_HEADER + "\t" + remoteRoot.getUri());
+            writer.newLine();
+            for (Map.Entry<String, Entry> file : synced.entrySet()) {
+                Entry entry = file.getValue();
+                writer.write(file.getKey() + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.etag);
+                writer.newLine();
+            }
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The size and modification time of a local file, with the ETag of its remote copy once it is in sync.
+     */
+    static final class Entry {
+
+        final long size;
+        final long modified;
+        final String etag;
+
+        Entry(long size, long modified, String etag) {
+            this.size = size;
+            this.modified = modified;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * The regular files and directories of the local tree.
+     */
+    private static final class LocalTree {
+
+        final Path root;
+        final Map<String, Entry> files = new HashMap<>();
+        final Set<String> directories = new HashSet<>();
+
+        LocalTree(Path root) {
+            this.root = root;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFileDirectory;
+import com.microsoft.azure.storage.file.CloudFileShare;
+import com.microsoft.azure.storage.file.ListFileItem;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Walks directory trees by listing many directories concurrently.
+ *
+ * Every directory found is queued as a new listing on a bounded pool, so idle workers pick up whichever
+ * directory is waiting next regardless of which branch of the tree it belongs to. Items are handed to the
+ * consumer as soon as each listing returns them, from the worker threads, in no particular order.
+ *
+ * Directories are listed one page at a time. With a limiter, each page request holds a permit of its own, so a
+ * directory with many pages does not keep a permit while its items are consumed. At most MAX_QUEUED_LISTINGS
+ * directories wait in the queue; a worker which finds the queue full lists the new directory itself, depth first,
+ * before going on with its own page. So however wide the tree, a walk holds at most the queued directory
+ * references and one page for each listing in progress, of which each worker has at most one per level of depth.
+ */
+class DirectoryTreeWalker {
+
+    static final int DEFAULT_MAX_IN_FLIGHT_LISTINGS = 16;
+
+    /**
+     * The maximum number of directories waiting to be listed.
+     */
+    static final int MAX_QUEUED_LISTINGS = 1024;
+
+    private final int maxInFlightListings;
+    private final AdaptiveConcurrencyLimiter limiter;
+
+    /**
+     * Creates a walker with the default maximum number of in-flight listings.
+     */
+    DirectoryTreeWalker() {
+        this(DEFAULT_MAX_IN_FLIGHT_LISTINGS);
+    }
+
+    /**
+     * Creates a walker.
+     *
+     * @param maxInFlightListings The maximum number of directories being listed at the same time.
+     */
+    DirectoryTreeWalker(int maxInFlightListings) {
+        this(maxInFlightListings, null);
+    }
+
+    /**
+     * Creates a walker whose page requests are also held to the limit of an adaptive limiter.
+     *
+     * @param maxInFlightListings The maximum number of directories being listed at the same time.
+     * @param limiter The limiter shared with the other operations against the service, or null for a fixed concurrency.
+     */
+    DirectoryTreeWalker(int maxInFlightListings, AdaptiveConcurrencyLimiter limiter) {
+        if (maxInFlightListings <= 0) {
+            throw new IllegalArgumentException("The maximum number of in-flight listings must be positive.");
+        }
+
+        this.maxInFlightListings = maxInFlightListings;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Walks the tree below the given directory.
+     *
+     * @param root The directory to start from. It is not passed to the consumer itself.
+     * @param consumer Receives every file and directory below the root. It must be thread-safe.
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    void walk(CloudFileDirectory root, Consumer<ListFileItem> consumer) throws StorageException, InterruptedException {
+        walk(Collections.singletonList(root), consumer);
+    }
+
+    /**
+     * Walks the trees of all the given shares concurrently.
+     *
+     * @param shares The shares to walk.
+     * @param consumer Receives every file and directory of every share. It must be thread-safe.
+     *
+     * @throws StorageException
+     * @throws URISyntaxException
+     * @throws InterruptedException
+     */
+    void walkShares(Iterable<CloudFileShare> shares, Consumer<ListFileItem> consumer) throws StorageException, URISyntaxException, InterruptedException {
+        List<CloudFileDirectory> roots = new ArrayList<>();
+        for (CloudFileShare share : shares) {
+            roots.add(share.getRootDirectoryReference());
+        }
+        walk(roots, consumer);
+    }
+
+    /**
+     * Walks the trees below all the given directories, sharing one pool of listings between them.
+     * The first failed listing stops the walk and is rethrown.
+     *
+     * @param roots The directories to start from.
+     * @param consumer Receives every file and directory below the roots. It must be thread-safe.
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    void walk(Collection<CloudFileDirectory> roots, Consumer<ListFileItem> consumer) throws StorageException, InterruptedException {
+        if (roots.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = new ThreadPoolExecutor(this.maxInFlightListings, this.maxInFlightListings, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_LISTINGS), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            Walk walk = new Walk(executor, this.limiter, consumer);
+            for (CloudFileDirectory root : roots) {
+                walk.submit(root);
+            }
+            walk.done.await();
+
+            Throwable failure = walk.failure.get();
+            if (failure != null) {
+                rethrow(failure);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Rethrows a listing failure, unwrapping the StorageException the lazy listing iterator wraps.
+     */
+    static void rethrow(Throwable t) throws StorageException {
+        if (t instanceof NoSuchElementException && t.getCause() instanceof StorageException) {
+            throw (StorageException) t.getCause();
+        }
+        if (t instanceof StorageException) {
+            throw (StorageException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IllegalStateException(t);
+    }
+
+    /**
+     * The state of one walk: the listings still pending and the first failure.
+     */
+    private static final class Walk {
+
+        private final ExecutorService executor;
+        private final AdaptiveConcurrencyLimiter limiter;
+        private final Consumer<ListFileItem> consumer;
+        private final AtomicInteger pending = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Walk(ExecutorService executor, AdaptiveConcurrencyLimiter limiter, Consumer<ListFileItem> consumer) {
+            this.executor = executor;
+            this.limiter = limiter;
+            this.consumer = consumer;
+        }
+
+        void submit(final CloudFileDirectory directory) {
+            this.pending.incrementAndGet();
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (failure.get() == null) {
+                            list(directory);
+                        }
+                    }
+                    catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                    finally {
+                        if (pending.decrementAndGet() == 0) {
+                            done.countDown();
+                        }
+                    }
+                }
+            });
+        }
+
+        private void list(CloudFileDirectory directory) throws StorageException, InterruptedException {
+            ResultContinuation token = null;
+            do {
+                ResultSegment<ListFileItem> segment = listPage(directory, token);
+                for (ListFileItem item : segment.getResults()) {
+                    if (this.failure.get() != null) {
+                        return;
+                    }
+                    this.consumer.accept(item);
+                    if (item instanceof CloudFileDirectory) {
+                        submit((CloudFileDirectory) item);
+                    }
+                }
+                token = segment.getContinuationToken();
+            } while (token != null);
+        }
+
+        private ResultSegment<ListFileItem> listPage(CloudFileDirectory directory, ResultContinuation token) throws StorageException, InterruptedException {
+            if (this.limiter == null) {
+                return directory.listFilesAndDirectoriesSegmented(null, token, null, null);
+            }
+
+            this.limiter.acquire();
+            try {
+                return directory.listFilesAndDirectoriesSegmented(null, token, null, null);
+            }
+            finally {
+                this.limiter.release();
+            }
+        }
+    }
+}
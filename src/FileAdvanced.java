@@ -17,16 +17,28 @@ import com.microsoft.azure.storage.*;
 import com.microsoft.azure.storage.file.CloudFileClient;
 import com.microsoft.azure.storage.file.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.InvalidKeyException;
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This sample illustrates advanced usage of the Azure file storage service.
  */
 class FileAdvanced {
 
+    /**
+     * Caches the attributes and listings read by the samples, so repeated reads cost no round trip.
+     */
+    private final FileMetadataCache metadataCache = new FileMetadataCache(10000, 30, TimeUnit.SECONDS);
+
     /**
      * Executes the samples.
      *
@@ -73,6 +85,26 @@ class FileAdvanced {
             System.out.println("File metadata sample");
             fileMetadata(fileClient);
             System.out.println();
+
+            System.out.println("Compressed file transfer sample");
+            compressedTransfer(fileClient);
+            System.out.println();
+
+            System.out.println("Directory mirror sample");
+            directoryMirror(fileClient);
+            System.out.println();
+
+            System.out.println("Bulk file properties and metadata sample");
+            bulkFileAttributes(fileClient);
+            System.out.println();
+
+            System.out.println("Bulk copy sample");
+            bulkCopy(fileClient);
+            System.out.println();
+
+            System.out.println("Async operations sample");
+            asyncOperations(fileClient);
+            System.out.println();
         }
         catch (Throwable t) {
             PrintHelper.printException(t);
@@ -83,16 +115,20 @@ class FileAdvanced {
 
     /**
      * Manage the service properties including hour and minute metrics.
+     * The reconciler downloads the properties once and uploads them only when they actually change.
      * @param fileClient Azure Storage File Service
      */
     private void serviceProperties(CloudFileClient fileClient) throws StorageException {
+        ServicePropertiesReconciler reconciler = new ServicePropertiesReconciler(1, TimeUnit.MINUTES);
+
         System.out.println("Get service properties");
-        FileServiceProperties originalProps = fileClient.downloadServiceProperties();
+        FileServiceProperties originalProps = reconciler.getProperties(fileClient);
 
         try {
             System.out.println("Set service properties");
-            // Change service properties
+            // Change service properties, leaving CORS as it is
             FileServiceProperties props = new FileServiceProperties();
+            props.setCors(null);
 
             final MetricsProperties hours = props.getHourMetrics();
             hours.setMetricsLevel(MetricsLevel.SERVICE_AND_API);
@@ -104,7 +140,7 @@ class FileAdvanced {
             minutes.setRetentionIntervalInDays(1);
             minutes.setVersion("1.0");
 
-            fileClient.uploadServiceProperties(props);
+            System.out.println(reconciler.reconcile(fileClient, props));
 
             System.out.println();
             System.out.println("Hour Metrics");
@@ -120,17 +156,18 @@ class FileAdvanced {
         }
         finally {
             // Revert back to original service properties
-            fileClient.uploadServiceProperties(originalProps);
+            System.out.println(reconciler.reconcile(fileClient, originalProps));
         }
     }
 
     /**
      * Set CORS rules sample.
-     * @param fileClient Azure Storage Blob Service
+     * The properties are downloaded once, and uploaded once for the change and once for the revert.
+     * @param fileClient Azure Storage File Service
      */
     private void corsRules(CloudFileClient fileClient) throws StorageException {
-
-        FileServiceProperties originalProperties = fileClient.downloadServiceProperties();
+        ServicePropertiesReconciler reconciler = new ServicePropertiesReconciler(1, TimeUnit.MINUTES);
+        FileServiceProperties originalProperties = reconciler.getProperties(fileClient);
 
         try {
             // Set CORS rules
@@ -140,13 +177,13 @@ class FileAdvanced {
             ruleAllowAll.getAllowedMethods().add(CorsHttpMethods.GET);
             ruleAllowAll.getAllowedHeaders().add("*");
             ruleAllowAll.getExposedHeaders().add("*");
-            FileServiceProperties props = fileClient.downloadServiceProperties();
+            FileServiceProperties props = reconciler.getProperties(fileClient);
             props.getCors().getCorsRules().add(ruleAllowAll);
-            fileClient.uploadServiceProperties(props);
+            System.out.println(reconciler.reconcile(fileClient, props));
         }
         finally {
             // Revert back to original service properties
-            fileClient.uploadServiceProperties(originalProperties);
+            System.out.println(reconciler.reconcile(fileClient, originalProperties));
         }
     }
 
@@ -245,14 +282,22 @@ class FileAdvanced {
             CloudFileDirectory dir = rootDir.getDirectoryReference("folder");
             dir.createIfNotExists();
 
-            // Get directory properties
+            // Get directory properties through the cache, which reads them from the service on the first call
             System.out.println("Get directory properties");
-            FileDirectoryProperties props = dir.getProperties();
+            FileDirectoryProperties props = this.metadataCache.getDirectoryProperties(dir);
 
             System.out.println();
             System.out.printf("last modified: %s%n", props.getLastModified());
             System.out.printf("Etag: %s%n", props.getEtag());
             System.out.println();
+
+            // Reading the properties again and listing the root directory twice only lists it once
+            System.out.println("Get directory properties again and list the root directory twice");
+            this.metadataCache.getDirectoryProperties(dir);
+            for (int i = 0; i < 2; i++) {
+                System.out.printf("root directory entries: %d%n", this.metadataCache.listFilesAndDirectories(rootDir).size());
+            }
+            System.out.printf("Metadata cache: %s%n", this.metadataCache);
         }
         finally {
             // Delete share
@@ -339,7 +384,7 @@ class FileAdvanced {
 
             // Get file properties
             System.out.println("Get file properties");
-            FileProperties props = file.getProperties();
+            FileProperties props = this.metadataCache.getFileProperties(file);
 
             System.out.println();
             System.out.printf("last modified: %s%n", props.getLastModified());
@@ -394,13 +439,14 @@ class FileAdvanced {
 
             // Get file metadata
             System.out.println("Get file metadata:");
-            metadata = file.getMetadata();
+            metadata = this.metadataCache.getFileMetadata(file);
             Iterator it = metadata.entrySet().iterator();
             while (it.hasNext()) {
                 Map.Entry pair = (Map.Entry) it.next();
                 System.out.printf(" %s = %s%n", pair.getKey(), pair.getValue());
                 it.remove();
             }
+            System.out.printf("Metadata cache: %s%n", this.metadataCache);
         }
         finally {
             // Delete share
@@ -408,4 +454,226 @@ class FileAdvanced {
             fileShare.delete();
         }
     }
+
+    /**
+     * Upload a text file compressed with gzip and download it decompressed
+     * @param fileClient Azure Storage File Service
+     */
+    private void compressedTransfer(CloudFileClient fileClient) throws URISyntaxException, StorageException, IOException, InterruptedException {
+
+        String fileShareName = DataGenerator.createRandomName("share-");
+        CloudFileShare fileShare = fileClient.getShareReference(fileShareName);
+
+        try {
+            // Create share
+            System.out.println("Create share");
+            fileShare.createIfNotExists();
+
+            // Create a local text file, which compresses well
+            File source = DataGenerator.createTempLocalFile("file-", ".txt", 16 * 1024 * 1024, DataGenerator.Content.COMPRESSIBLE, System.nanoTime());
+            CloudFile file = fileShare.getRootDirectoryReference().getFileReference(source.getName());
+            file.getProperties().setContentType("text/plain");
+
+            // Upload it compressed, recording gzip as the content encoding
+            System.out.println("Upload compressed file");
+            CompressedFileTransfer transfer = new CompressedFileTransfer();
+            TransferStatistics statistics = transfer.upload(file, source);
+            System.out.printf("%d bytes stored as %s%n", source.length(), statistics);
+
+            // Get the file properties and metadata recording the compression
+            file.downloadAttributes();
+            System.out.printf("content encoding: %s%n", file.getProperties().getContentEncoding());
+            System.out.printf("metadata: %s%n", file.getMetadata());
+
+            // Download it decompressed
+            System.out.println("Download decompressed file");
+            File destination = File.createTempFile("file-", ".txt");
+            destination.deleteOnExit();
+            System.out.printf("%d bytes downloaded%n", transfer.download(file, destination));
+        }
+        finally {
+            // Delete share
+            System.out.println("Delete share");
+            fileShare.deleteIfExists();
+        }
+    }
+
+    /**
+     * Mirror a local directory to a share, then mirror it again after changing it
+     * @param fileClient Azure Storage File Service
+     */
+    private void directoryMirror(CloudFileClient fileClient) throws URISyntaxException, StorageException, IOException, InterruptedException {
+
+        String fileShareName = DataGenerator.createRandomName("share-");
+        CloudFileShare fileShare = fileClient.getShareReference(fileShareName);
+
+        Path localRoot = Files.createTempDirectory("mirror-");
+        File manifest = File.createTempFile("mirror-", ".manifest");
+        try {
+            // Create share
+            System.out.println("Create share");
+            fileShare.createIfNotExists();
+
+            // Create a local directory tree
+            System.out.println("Create local files");
+            for (int i = 0; i < 10; i++) {
+                Path directory = Files.createDirectories(localRoot.resolve("folder" + (i % 3)));
+                DataGenerator.writeFile(directory.resolve(String.format("file%d.txt", i)).toFile(), 1024 + i, DataGenerator.Content.COMPRESSIBLE, i);
+            }
+
+            // The first mirror uploads everything
+            System.out.println("Mirror the local directory");
+            CloudFileDirectory remoteRoot = fileShare.getRootDirectoryReference().getDirectoryReference("mirror");
+            DirectoryMirror mirror = new DirectoryMirror();
+            System.out.println(mirror.mirror(localRoot.toFile(), remoteRoot, manifest, true, null));
+
+            // The next one only uploads the changed file and deletes the removed one
+            System.out.println("Change the local directory and mirror it again");
+            DataGenerator.writeFile(localRoot.resolve("folder0/file0.txt").toFile(), 2048, DataGenerator.Content.COMPRESSIBLE, 42);
+            Files.delete(localRoot.resolve("folder1/file1.txt"));
+            System.out.println(mirror.mirror(localRoot.toFile(), remoteRoot, manifest, true, null));
+        }
+        finally {
+            // Delete share and local files
+            System.out.println("Delete share");
+            fileShare.deleteIfExists();
+            manifest.delete();
+            try (Stream<Path> paths = Files.walk(localRoot)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Change the content type and metadata of many files at once
+     * @param fileClient Azure Storage File Service
+     */
+    private void bulkFileAttributes(CloudFileClient fileClient) throws URISyntaxException, StorageException, InterruptedException {
+
+        String fileShareName = DataGenerator.createRandomName("share-");
+        CloudFileShare fileShare = fileClient.getShareReference(fileShareName);
+
+        try {
+            // Create share
+            System.out.println("Create share");
+            fileShare.createIfNotExists();
+
+            // Create a directory with a few text and binary files
+            System.out.println("Create files");
+            CloudFileDirectory directory = fileShare.getRootDirectoryReference().getDirectoryReference("documents");
+            directory.create();
+            for (int i = 0; i < 10; i++) {
+                directory.getFileReference(String.format("file%d.%s", i, i % 2 == 0 ? "txt" : "bin")).create(10);
+            }
+
+            // Set the content type and a tag on every text file, writing only what changes
+            System.out.println("Update the text files");
+            BulkProgress progress = new BulkAttributeUpdater().update(fileShare,
+                    file -> file.getName().endsWith(".txt"),
+                    (properties, metadata) -> {
+                        properties.setContentType("text/plain");
+                        metadata.put("category", "text");
+                    },
+                    null);
+            System.out.println(progress);
+
+            // A second pass finds nothing left to change
+            System.out.println("Update the text files again");
+            progress = new BulkAttributeUpdater().update(fileShare,
+                    file -> file.getName().endsWith(".txt"),
+                    (properties, metadata) -> {
+                        properties.setContentType("text/plain");
+                        metadata.put("category", "text");
+                    },
+                    null);
+            System.out.println(progress);
+        }
+        finally {
+            // Delete share
+            System.out.println("Delete share");
+            fileShare.deleteIfExists();
+        }
+    }
+
+    /**
+     * Copy a whole share into another one with server-side copies
+     * @param fileClient Azure Storage File Service
+     */
+    private void bulkCopy(CloudFileClient fileClient) throws URISyntaxException, StorageException, IOException, InterruptedException {
+
+        CloudFileShare sourceShare = fileClient.getShareReference(DataGenerator.createRandomName("share-"));
+        CloudFileShare destinationShare = fileClient.getShareReference(DataGenerator.createRandomName("share-"));
+
+        try {
+            // Create shares
+            System.out.println("Create shares");
+            sourceShare.createIfNotExists();
+            destinationShare.createIfNotExists();
+
+            // Create a small directory tree in the source share
+            System.out.println("Create files");
+            for (int i = 0; i < 3; i++) {
+                CloudFileDirectory directory = sourceShare.getRootDirectoryReference().getDirectoryReference("folder" + i);
+                directory.create();
+                for (int j = 0; j < 5; j++) {
+                    directory.getFileReference(String.format("file%d.txt", j)).uploadText(String.format("File %d in folder %d", j, i));
+                }
+            }
+
+            // Copy every directory and file
+            System.out.println("Copy the share");
+            BulkCopier copier = new BulkCopier();
+            System.out.println(copier.copy(sourceShare, destinationShare, null));
+
+            // A rerun skips the files which are already up to date
+            System.out.println("Copy the share again");
+            System.out.println(copier.copy(sourceShare, destinationShare, null));
+        }
+        finally {
+            // Delete shares
+            System.out.println("Delete shares");
+            sourceShare.deleteIfExists();
+            destinationShare.deleteIfExists();
+        }
+    }
+
+    /**
+     * Create, list and copy files with many requests in flight at once, held to the adaptive concurrency limit
+     * @param fileClient Azure Storage File Service
+     */
+    private void asyncOperations(CloudFileClient fileClient) throws URISyntaxException, StorageException {
+
+        CloudFileShare fileShare = fileClient.getShareReference(DataGenerator.createRandomName("share-"));
+        ExecutorService executor = AsyncExecutors.newExecutor();
+
+        try (AsyncFileOperations operations = new AsyncFileOperations(executor, AdaptiveConcurrencyLimiter.forClient(fileClient))) {
+            // Create share
+            System.out.println("Create share");
+            operations.createIfNotExists(fileShare).join();
+
+            // Create all files at once and wait for the last one
+            System.out.println("Create files");
+            CloudFileDirectory rootDir = fileShare.getRootDirectoryReference();
+            List<CompletableFuture<Void>> creates = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                creates.add(operations.create(rootDir.getFileReference(String.format("file%d.bin", i)), 1024));
+            }
+            CompletableFuture.allOf(creates.toArray(new CompletableFuture<?>[0])).join();
+
+            // List the files
+            System.out.println(String.format("Listed %d files", operations.list(rootDir).join().size()));
+
+            // Copy a file and wait for the copy to end
+            System.out.println("Copy a file");
+            CopyState state = operations.copy(rootDir.getFileReference("file0.bin"), rootDir.getFileReference("copy.bin")).join();
+            System.out.println(String.format("Copy finished with status %s", state.getStatus()));
+        }
+        finally {
+            executor.shutdownNow();
+
+            // Delete share
+            System.out.println("Delete share");
+            fileShare.deleteIfExists();
+        }
+    }
 }
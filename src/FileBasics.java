@@ -25,10 +25,13 @@ import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.StorageException;
@@ -36,6 +39,7 @@ import com.microsoft.azure.storage.file.CloudFile;
 import com.microsoft.azure.storage.file.CloudFileClient;
 import com.microsoft.azure.storage.file.CloudFileDirectory;
 import com.microsoft.azure.storage.file.CloudFileShare;
+import com.microsoft.azure.storage.file.CopyState;
 import com.microsoft.azure.storage.file.CopyStatus;
 import com.microsoft.azure.storage.file.FileRange;
 import com.microsoft.azure.storage.file.ListFileItem;
@@ -140,45 +144,62 @@ public class FileBasics {
             File tempFile2 = DataGenerator.createTempLocalFile("file-", ".tmp", (10 * 1024 * 1024) + random.nextInt(5 * 1024 * 1024));
             System.out.println(String.format("\tSuccessfully created the file \"%s\".", tempFile2.getAbsolutePath()));
 
-            // Upload a local file to the root directory
-            System.out.println("\nUpload the sample file to the root directory.");
+            // Upload a local file to the root directory in parallel ranges
+            ParallelFileTransfer transfer = new ParallelFileTransfer(ParallelFileTransfer.MAX_RANGE_SIZE, ParallelFileTransfer.DEFAULT_CONCURRENCY);
+            System.out.println(String.format("\nUpload the sample file to the root directory in %d byte ranges, %d at a time.", transfer.getRangeSize(), transfer.getConcurrency()));
             CloudFile file2 = rootDir1.getFileReference(tempFile2.getName());
-            file2.uploadFromFile(tempFile2.getAbsolutePath());
-            System.out.println("\tSuccessfully uploaded the file.");
+            TransferStatistics uploadStatistics = transfer.upload(file2, tempFile2);
+            System.out.println(String.format("\tSuccessfully uploaded the file: %s.", uploadStatistics));
+
+            // Upload a mostly empty local file sparsely, sending only its blocks which are not all zeros
+            System.out.println("\nCreating a 4MB sample file which is three quarters zero blocks for sparse upload demonstration.");
+            File zeroHeavyFile = DataGenerator.createTempLocalFile("file-", ".tmp", 4 * 1024 * 1024, DataGenerator.Content.ZERO_HEAVY, random.nextLong());
+            System.out.println(String.format("\nUpload the sample file to the directory we created, skipping its %d byte zero blocks.", ParallelFileTransfer.DEFAULT_ZERO_BLOCK_SIZE));
+            CloudFile zeroHeavyCloudFile = dir.getFileReference(zeroHeavyFile.getName());
+            TransferStatistics sparseUploadStatistics = transfer.uploadSparse(zeroHeavyCloudFile, zeroHeavyFile);
+            System.out.println(String.format("\tSuccessfully uploaded the file: %s.", sparseUploadStatistics));
+            System.out.println(String.format("\tThe file has %d populated ranges.", zeroHeavyCloudFile.downloadFileRanges().size()));
 
             // Copy the file between shares
             System.out.println(String.format("\nCopying file \"%s\" from share \"%s\" into the share \"%s\".", file2.getName(), fileShare1.getName(), fileShare2.getName()));
             CloudFile file2copy = rootDir2.getFileReference(file2.getName() + "-copy");
-            file2copy.startCopy(file2);
-            waitForCopyToComplete(file2copy);
-            System.out.println("\tSuccessfully copied the file.");
-
-            // Abort copying the file between shares
-            System.out.println(String.format("\nAbort when copying file \"%s\" from share \"%s\" into the share \"%s\".", file2.getName(), fileShare1.getName(), fileShare2.getName()));
-            System.out.println(String.format("\nAbort when copying file from the root directory \"%s\" into the directory we created \"%s\".", file2.getUri().toURL(), dir.getUri().toURL()));
             CloudFile file2copyaborted = rootDir2.getFileReference(file2.getName() + "-copyaborted");
-            boolean copyAborted = true;
-            String copyId = file2copyaborted.startCopy(file2);
-            try {
-                file2copyaborted.abortCopy(copyId);
-            }
-            catch (StorageException ex) {
-                if (ex.getErrorCode().equals("NoPendingCopyOperation")) {
-                    copyAborted = false;
+            try (CopyScheduler copyScheduler = new CopyScheduler()) {
+                CopyState copyState = copyScheduler.startCopy(file2, file2copy).get();
+                if (copyState.getStatus() != CopyStatus.SUCCESS) {
+                    throw new IllegalStateException(String.format("Copy finished with status %s: %s", copyState.getStatus(), copyState.getStatusDescription()));
+                }
+                System.out.println("\tSuccessfully copied the file.");
+
+                // Abort copying the file between shares
+                System.out.println(String.format("\nAbort when copying file \"%s\" from share \"%s\" into the share \"%s\".", file2.getName(), fileShare1.getName(), fileShare2.getName()));
+                System.out.println(String.format("\nAbort when copying file from the root directory \"%s\" into the directory we created \"%s\".", file2.getUri().toURL(), dir.getUri().toURL()));
+                CompletableFuture<CopyState> abortedCopy = copyScheduler.startCopy(file2, file2copyaborted);
+                boolean copyAborted = copyScheduler.abortCopy(file2copyaborted).get();
+                abortedCopy.get();
+                if (copyAborted == true) {
+                    System.out.println("\tSuccessfully aborted copying the file.");
                 } else {
-                    throw ex;
+                    System.out.println("\tFailed to abort copying the file because the copy finished before we could abort.");
                 }
             }
-            if (copyAborted == true) {
-                System.out.println("\tSuccessfully aborted copying the file.");
-            } else {
-                System.out.println("\tFailed to abort copying the file because the copy finished before we could abort.");
-            }
 
             // List all file shares and files/directories in each share
             System.out.println("\nList all file shares and files/directories in each share.");
             enumerateFileSharesAndContents(fileClient);
 
+            // List the root directory page by page, keeping the marker to resume from after each page
+            System.out.println("\nList the root directory of the first share two items at a time, one page fetched ahead.");
+            try (SegmentedDirectoryListing listing = SegmentedDirectoryListing.start(rootDir1, null, 2, 1)) {
+                List<ListFileItem> page;
+                while ((page = listing.nextPage()) != null) {
+                    for (ListFileItem item : page) {
+                        System.out.println(String.format("\t%s", item.getUri()));
+                    }
+                    System.out.println(String.format("\t\tResume marker: %s", listing.getResumeMarker()));
+                }
+            }
+
             // Download the uploaded files
             System.out.println("\nDownload the uploaded files.");
             String downloadedFilePath = String.format("%s%s", System.getProperty("java.io.tmpdir"), file1.getName());
@@ -187,12 +208,20 @@ public class FileBasics {
             new File(downloadedFilePath).deleteOnExit();
             downloadedFilePath = String.format("%s%s", System.getProperty("java.io.tmpdir"), file1sparse.getName());
             System.out.println(String.format("\tDownload the sparsely uploaded file from \"%s\" to \"%s\".", file1sparse.getUri().toURL(), downloadedFilePath));
-            file1sparse.downloadToFile(downloadedFilePath);
+            TransferStatistics sparseStatistics = transfer.downloadSparse(file1sparse, new File(downloadedFilePath));
+            System.out.println(String.format("\t\tFetched only the populated ranges: %s.", sparseStatistics));
             new File(downloadedFilePath).deleteOnExit();
             downloadedFilePath = String.format("%s%s", System.getProperty("java.io.tmpdir"), file2.getName());
             System.out.println(String.format("\tDownload the copied file from \"%s\" to \"%s\".", file2.getUri().toURL(), downloadedFilePath));
+            long downloadStart = System.nanoTime();
             file2.downloadToFile(downloadedFilePath);
+            System.out.println(String.format("\t\tSequential download took %.1f ms.", (System.nanoTime() - downloadStart) / 1e6));
             new File(downloadedFilePath).deleteOnExit();
+            File parallelDownloadFile = new File(downloadedFilePath + "-parallel");
+            System.out.println(String.format("\tDownload the same file in parallel ranges to \"%s\".", parallelDownloadFile.getAbsolutePath()));
+            TransferStatistics downloadStatistics = transfer.download(file2, parallelDownloadFile);
+            System.out.println(String.format("\t\tParallel download: %s.", downloadStatistics));
+            parallelDownloadFile.deleteOnExit();
             downloadedFilePath = String.format("%s%s", System.getProperty("java.io.tmpdir"), file2copy.getName());
             System.out.println(String.format("\tDownload the copied file from \"%s\" to \"%s\".", file2copy.getUri().toURL(), downloadedFilePath));
             file2copy.downloadToFile(downloadedFilePath);
@@ -206,14 +235,14 @@ public class FileBasics {
             // Delete the files and directory
             System.out.print("\nDelete the filess and directory. Press any key to continue...");
 
-            file1.delete();
-            file1sparse.delete();
-            file2.delete();
-            file2copy.delete();
-            file2copyaborted.delete();
-            System.out.println("\tSuccessfully deleted the files.");
-            dir.delete();
-            System.out.println("\tSuccessfully deleted the directory.");
+            TreeDeleter treeDeleter = new TreeDeleter();
+            for (CloudFileDirectory rootDir : new CloudFileDirectory[] { rootDir1, rootDir2 }) {
+                BulkProgress deleteProgress = treeDeleter.deleteContents(rootDir, null);
+                if (deleteProgress.getFirstFailure() != null) {
+                    throw deleteProgress.getFirstFailure();
+                }
+                System.out.println(String.format("\tSuccessfully deleted the files and directories of \"%s\": %s.", rootDir.getUri().toURL(), deleteProgress));
+            }
         }
         catch (Throwable t) {
             PrintHelper.printException(t);
@@ -222,12 +251,15 @@ public class FileBasics {
             // Delete any file shares that we created (If you do not want to delete the file share comment the line of code below)
             System.out.print("\nDelete any file shares we created.");
 
-            if (fileShare1 != null && fileShare1.deleteIfExists() == true) {
-                System.out.println(String.format("\tSuccessfully deleted the file share: %s", fileShare1.getName()));
+            ArrayList<CloudFileShare> fileShares = new ArrayList<>();
+            if (fileShare1 != null) {
+                fileShares.add(fileShare1);
             }
-
-            if (fileShare2 != null && fileShare2.deleteIfExists() == true) {
-                System.out.println(String.format("\tSuccessfully deleted the file share: %s", fileShare2.getName()));
+            if (fileShare2 != null) {
+                fileShares.add(fileShare2);
+            }
+            for (CloudFileShare deletedShare : TreeDeleter.deleteSharesIfExist(fileShares)) {
+                System.out.println(String.format("\tSuccessfully deleted the file share: %s", deletedShare.getName()));
             }
 
             // Close the file input stream of the local temporary file
@@ -273,54 +305,28 @@ public class FileBasics {
     }
 
     /**
-     * Enumerates the contents of the file share.
-     *
-     * @param rootDir Root directory which needs to be enumerated
-     *
-     * @throws StorageException
-     */
-    private static void enumerateDirectoryContents(CloudFileDirectory rootDir) throws StorageException {
-
-        Iterable<ListFileItem> results = rootDir.listFilesAndDirectories();
-        for (Iterator<ListFileItem> itr = results.iterator(); itr.hasNext(); ) {
-            ListFileItem item = itr.next();
-            boolean isDirectory = item.getClass() == CloudFileDirectory.class;
-            System.out.println(String.format("\t\t%s: %s", isDirectory ? "Directory " : "File      ", item.getUri().toString()));
-            if (isDirectory == true) {
-            	enumerateDirectoryContents((CloudFileDirectory) item);
-            }
-        }
-    }
-
-    /**
-     * Enumerates the shares and contents of the file shares.
+     * Enumerates the shares and contents of the file shares, listing directories of all shares concurrently.
      *
      * @param fileClient CloudFileClient object
      *
      * @throws StorageException
      * @throws URISyntaxException
+     * @throws InterruptedException
      */
-    private static void enumerateFileSharesAndContents(CloudFileClient fileClient) throws StorageException, URISyntaxException {
+    private static void enumerateFileSharesAndContents(CloudFileClient fileClient) throws StorageException, URISyntaxException, InterruptedException {
 
+        ArrayList<CloudFileShare> shares = new ArrayList<>();
         for (CloudFileShare share : fileClient.listShares("filebasics")) {
             System.out.println(String.format("\tFile Share: %s", share.getName()));
-            enumerateDirectoryContents(share.getRootDirectoryReference());
+            shares.add(share);
         }
-    }
 
-    /**
-     * Wait until the copy complete.
-     *
-     * @param file Target of the copy operation
-     *
-     * @throws InterruptedException
-     * @throws StorageException
-     */
-    private static void waitForCopyToComplete(CloudFile file) throws InterruptedException, StorageException {
-        CopyStatus copyStatus = CopyStatus.PENDING;
-        while (copyStatus == CopyStatus.PENDING) {
-            Thread.sleep(1000);
-            copyStatus = file.getCopyState().getStatus();
-        }
+        new DirectoryTreeWalker().walkShares(shares, new Consumer<ListFileItem>() {
+            @Override
+            public void accept(ListFileItem item) {
+                boolean isDirectory = item instanceof CloudFileDirectory;
+                System.out.println(String.format("\t\t%s: %s", isDirectory ? "Directory " : "File      ", item.getUri().toString()));
+            }
+        });
     }
 }
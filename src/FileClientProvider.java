@@ -1,11 +1,14 @@
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.RetryExponentialRetry;
 import com.microsoft.azure.storage.file.CloudFileClient;
+import com.microsoft.azure.storage.file.FileRequestOptions;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages the storage file client
@@ -13,20 +16,159 @@ import java.util.Properties;
 class FileClientProvider {
 
     /**
-     * Validates the connection string and returns the storage file client.
+     * The client shared by every caller, created on first use.
+     */
+    private static volatile CloudFileClient sharedClient;
+
+    private static boolean metricsReported;
+
+    /**
+     * Returns the storage file client shared by all callers and threads.
+     * The configuration is read and the connection string parsed only the first time, so later calls cost nothing
+     * and reuse the client's warm connections.
+     *
+     * @return The shared CloudFileClient object
+     *
+     */
+    static CloudFileClient getFileClientReference() throws RuntimeException, IOException, URISyntaxException, InvalidKeyException {
+        CloudFileClient client = sharedClient;
+        if (client == null) {
+            synchronized (FileClientProvider.class) {
+                client = sharedClient;
+                if (client == null) {
+                    client = createFileClient(loadProperties());
+                    sharedClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Returns a new storage file client configured from config.properties, for callers which change its default
+     * request options and so must not share the client with others.
+     *
+     * @return The newly created CloudFileClient object
+     *
+     */
+    static CloudFileClient createFileClient() throws RuntimeException, IOException, URISyntaxException, InvalidKeyException {
+        return createFileClient(loadProperties());
+    }
+
+    /**
+     * Validates the connection string and returns a new storage file client tuned by the optional settings.
      * The connection string must be in the Azure connection string format.
      *
+     * @param prop The configuration containing the connection string and the optional tuning settings.
      * @return The newly created CloudFileClient object
      *
      */
-    static CloudFileClient getFileClientReference() throws RuntimeException, IOException, URISyntaxException, InvalidKeyException {
+    static CloudFileClient createFileClient(Properties prop) throws RuntimeException, URISyntaxException, InvalidKeyException {
+
+        CloudStorageAccount storageAccount;
+        try {
+            storageAccount = CloudStorageAccount.parse(prop.getProperty("StorageConnectionString"));
+        }
+        catch (IllegalArgumentException|URISyntaxException e) {
+            System.out.println("\nConnection string specifies an invalid URI.");
+            System.out.println("Please confirm the connection string is in the Azure connection string format.");
+            throw e;
+        }
+        catch (InvalidKeyException e) {
+            System.out.println("\nConnection string specifies an invalid key.");
+            System.out.println("Please confirm the AccountName and AccountKey in the connection string are valid.");
+            throw e;
+        }
+
+        // The HTTP connection pool is configured through system properties which are read on first use,
+        // so they are applied before the client issues any request. Values given on the command line win.
+        setSystemPropertyIfAbsent("http.keepAlive", prop.getProperty("HttpKeepAlive"));
+        setSystemPropertyIfAbsent("http.maxConnections", prop.getProperty("HttpMaxConnections"));
+
+        CloudFileClient fileClient = storageAccount.createCloudFileClient();
+        applyRequestOptions(fileClient.getDefaultRequestOptions(), prop);
+        applyMetrics(prop);
+        return fileClient;
+    }
+
+    /**
+     * Enables the client metrics, and their periodic report to the console, when the configuration asks for them.
+     * The metrics cover the requests of every client, so enabling them more than once changes nothing.
+     *
+     * @param prop The configuration containing the optional EnableMetrics and MetricsReportIntervalInSeconds settings.
+     */
+    static void applyMetrics(Properties prop) {
+        Integer reportIntervalInSeconds = getInteger(prop, "MetricsReportIntervalInSeconds");
+        if (!Boolean.parseBoolean(prop.getProperty("EnableMetrics", "false").trim()) && reportIntervalInSeconds == null) {
+            return;
+        }
+
+        ClientMetrics metrics = ClientMetrics.enable();
+        if (reportIntervalInSeconds != null && reportIntervalInSeconds > 0) {
+            synchronized (FileClientProvider.class) {
+                if (!metricsReported) {
+                    metrics.startReporting(reportIntervalInSeconds, TimeUnit.SECONDS, System.out::print);
+                    metricsReported = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the optional timeout, retry, concurrency and integrity settings to the default request options.
+     *
+     * @param options The request options to change.
+     * @param prop The configuration containing the settings. Missing settings keep the SDK defaults.
+     */
+    static void applyRequestOptions(FileRequestOptions options, Properties prop) {
+        Integer timeoutIntervalInMs = getInteger(prop, "TimeoutIntervalInMs");
+        if (timeoutIntervalInMs != null) {
+            options.setTimeoutIntervalInMs(timeoutIntervalInMs);
+        }
+
+        Integer maximumExecutionTimeInMs = getInteger(prop, "MaximumExecutionTimeInMs");
+        if (maximumExecutionTimeInMs != null) {
+            options.setMaximumExecutionTimeInMs(maximumExecutionTimeInMs);
+        }
+
+        Integer retryDeltaBackoffInMs = getInteger(prop, "RetryDeltaBackoffInMs");
+        Integer retryMaxAttempts = getInteger(prop, "RetryMaxAttempts");
+        if (retryDeltaBackoffInMs != null || retryMaxAttempts != null) {
+            options.setRetryPolicyFactory(new RetryExponentialRetry(
+                    retryDeltaBackoffInMs != null ? retryDeltaBackoffInMs : RetryExponentialRetry.DEFAULT_CLIENT_BACKOFF,
+                    retryMaxAttempts != null ? retryMaxAttempts : RetryExponentialRetry.DEFAULT_CLIENT_RETRY_COUNT));
+        }
+
+        Integer concurrentRequestCount = getInteger(prop, "ConcurrentRequestCount");
+        if (concurrentRequestCount != null) {
+            options.setConcurrentRequestCount(concurrentRequestCount);
+        }
+
+        // Sends the MD5 of every uploaded range and asks for it with every downloaded range, so each is checked
+        String useTransactionalContentMD5 = prop.getProperty("UseTransactionalContentMD5");
+        if (useTransactionalContentMD5 != null && !useTransactionalContentMD5.trim().isEmpty()) {
+            options.setUseTransactionalContentMD5(Boolean.parseBoolean(useTransactionalContentMD5.trim()));
+        }
+    }
+
+    /**
+     * Loads config.properties from the classpath.
+     *
+     * @return The loaded configuration
+     */
+    private static Properties loadProperties() throws RuntimeException, IOException {
 
         // Retrieve the connection string
         Properties prop = new Properties();
         try {
             InputStream propertyStream = FileBasics.class.getClassLoader().getResourceAsStream("config.properties");
             if (propertyStream != null) {
-                prop.load(propertyStream);
+                try {
+                    prop.load(propertyStream);
+                }
+                finally {
+                    propertyStream.close();
+                }
             }
             else {
                 throw new RuntimeException();
@@ -36,22 +178,27 @@ class FileClientProvider {
             throw e;
         }
 
-        CloudStorageAccount storageAccount;
-        try {
-            storageAccount = CloudStorageAccount.parse(prop.getProperty("StorageConnectionString"));
+        return prop;
+    }
+
+    private static Integer getInteger(Properties prop, String key) {
+        String value = prop.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
         }
-        catch (IllegalArgumentException|URISyntaxException e) {
-            System.out.println("\nConnection string specifies an invalid URI.");
-            System.out.println("Please confirm the connection string is in the Azure connection string format.");
-            throw e;
+
+        try {
+            return Integer.valueOf(value.trim());
         }
-        catch (InvalidKeyException e) {
-            System.out.println("\nConnection string specifies an invalid key.");
-            System.out.println("Please confirm the AccountName and AccountKey in the connection string are valid.");
+        catch (NumberFormatException e) {
+            System.out.println(String.format("\nThe setting %s in config.properties must be an integer.", key));
             throw e;
         }
-
-        return storageAccount.createCloudFileClient();
     }
 
+    private static void setSystemPropertyIfAbsent(String key, String value) {
+        if (value != null && !value.trim().isEmpty() && System.getProperty(key) == null) {
+            System.setProperty(key, value.trim());
+        }
+    }
 }
@@ -0,0 +1,366 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.CloudFileDirectory;
+import com.microsoft.azure.storage.file.FileDirectoryProperties;
+import com.microsoft.azure.storage.file.FileProperties;
+import com.microsoft.azure.storage.file.ListFileItem;
+
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client-side cache of file and directory attributes and of directory listings.
+ *
+ * Entries are keyed by their URI, which includes the share and the path. A fresh entry is served without any
+ * network call. Once an entry is older than the time to live, file and directory attributes are revalidated with
+ * an If-None-Match condition on their ETag. SDK 4.2.0, which these samples use, does not send access conditions on
+ * attribute requests, so a revalidation reads the attributes in full; it still refreshes the entry and drops the
+ * entry of an item which is gone. Listings have no ETag of their own and are simply reloaded.
+ *
+ * The size of the cache is bounded by a weight, where attributes weigh 1 and a listing weighs 1 per child, and the
+ * least recently used entries are evicted first. The cache reads into references of its own and hands out copies,
+ * so neither the caller's objects nor the values returned to other callers are shared with the cached entries.
+ * Directory properties are the exception, since they have no public setters and are returned as cached.
+ */
+class FileMetadataCache {
+
+    private final long maxWeight;
+    private final long timeToLiveNanos;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxWeight The maximum total weight of the cached entries.
+     * @param timeToLive The time an entry is served without contacting the service.
+     * @param unit The unit of the time to live.
+     */
+    FileMetadataCache(long maxWeight, long timeToLive, TimeUnit unit) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("The maximum weight must be positive.");
+        }
+
+        this.maxWeight = maxWeight;
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+    }
+
+    /**
+     * Returns the properties of the file, downloading its attributes only on a miss or an expired entry.
+     *
+     * @param file The file.
+     * @return A copy of the cached properties.
+     *
+     * @throws StorageException
+     */
+    FileProperties getFileProperties(CloudFile file) throws StorageException {
+        return new FileProperties(getFileAttributes(file).getProperties());
+    }
+
+    /**
+     * Returns the metadata of the file, downloading its attributes only on a miss or an expired entry.
+     *
+     * @param file The file.
+     * @return A copy of the cached metadata.
+     *
+     * @throws StorageException
+     */
+    HashMap<String, String> getFileMetadata(CloudFile file) throws StorageException {
+        return new HashMap<>(getFileAttributes(file).getMetadata());
+    }
+
+    /**
+     * Returns the properties of the directory, downloading its attributes only on a miss or an expired entry.
+     *
+     * @param directory The directory.
+     * @return The cached properties.
+     *
+     * @throws StorageException
+     */
+    FileDirectoryProperties getDirectoryProperties(CloudFileDirectory directory) throws StorageException {
+        return getDirectoryAttributes(directory).getProperties();
+    }
+
+    /**
+     * Returns the metadata of the directory, downloading its attributes only on a miss or an expired entry.
+     *
+     * @param directory The directory.
+     * @return A copy of the cached metadata.
+     *
+     * @throws StorageException
+     */
+    HashMap<String, String> getDirectoryMetadata(CloudFileDirectory directory) throws StorageException {
+        return new HashMap<>(getDirectoryAttributes(directory).getMetadata());
+    }
+
+    /**
+     * Returns the files and directories directly below the directory, listing it only on a miss or an expired entry.
+     *
+     * @param directory The directory to list.
+     * @return An unmodifiable listing of copies of the cached items.
+     *
+     * @throws StorageException
+     */
+    @SuppressWarnings("unchecked")
+    List<ListFileItem> listFilesAndDirectories(CloudFileDirectory directory) throws StorageException {
+        String key = "list:" + directory.getUri();
+        Entry entry = getFresh(key);
+        if (entry != null) {
+            return copyOf((List<ListFileItem>) entry.value);
+        }
+
+        this.misses.incrementAndGet();
+        List<ListFileItem> children = new ArrayList<>();
+        try {
+            for (ListFileItem item : directory.listFilesAndDirectories()) {
+                children.add(item);
+            }
+        }
+        catch (NoSuchElementException e) {
+            DirectoryTreeWalker.rethrow(e);
+        }
+        List<ListFileItem> cached = copyOf(children);
+        put(key, new Entry(cached, null, Math.max(1, cached.size())));
+        return Collections.unmodifiableList(children);
+    }
+
+    /**
+     * Removes any cached attributes and listing of the file or directory, e.g. after changing it.
+     *
+     * @param item The file or directory.
+     */
+    synchronized void invalidate(ListFileItem item) {
+        remove("attributes:" + item.getUri());
+        remove("list:" + item.getUri());
+    }
+
+    long getHitCount() {
+        return this.hits.get();
+    }
+
+    long getMissCount() {
+        return this.misses.get();
+    }
+
+    long getRevalidationCount() {
+        return this.revalidations.get();
+    }
+
+    long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    synchronized long getWeight() {
+        return this.weight;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses, %d revalidations, %d evictions, weight %d of %d",
+                getHitCount(), getMissCount(), getRevalidationCount(), getEvictionCount(), getWeight(), this.maxWeight);
+    }
+
+    private CloudFile getFileAttributes(CloudFile file) throws StorageException {
+        String key = "attributes:" + file.getUri();
+        Entry entry = getFresh(key);
+        if (entry != null) {
+            return (CloudFile) entry.value;
+        }
+
+        entry = getExpired(key);
+        if (entry != null) {
+            // Callers may be reading the cached object, so the attributes are read into a new one
+            CloudFile cached = (CloudFile) entry.value;
+            CloudFile revalidated = newReference(cached);
+            try {
+                revalidated.downloadAttributes(AccessCondition.generateIfNoneMatchCondition(entry.etag), null, null);
+            }
+            catch (StorageException e) {
+                if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    removeIfUnchanged(key, entry, e);
+                    throw e;
+                }
+                revalidated = cached;
+            }
+            this.revalidations.incrementAndGet();
+            put(key, new Entry(revalidated, revalidated.getProperties().getEtag(), 1));
+            return revalidated;
+        }
+
+        this.misses.incrementAndGet();
+        CloudFile loaded = newReference(file);
+        loaded.downloadAttributes();
+        put(key, new Entry(loaded, loaded.getProperties().getEtag(), 1));
+        return loaded;
+    }
+
+    private CloudFileDirectory getDirectoryAttributes(CloudFileDirectory directory) throws StorageException {
+        String key = "attributes:" + directory.getUri();
+        Entry entry = getFresh(key);
+        if (entry != null) {
+            return (CloudFileDirectory) entry.value;
+        }
+
+        entry = getExpired(key);
+        if (entry != null) {
+            // Callers may be reading the cached object, so the attributes are read into a new one
+            CloudFileDirectory cached = (CloudFileDirectory) entry.value;
+            CloudFileDirectory revalidated = newReference(cached);
+            try {
+                revalidated.downloadAttributes(AccessCondition.generateIfNoneMatchCondition(entry.etag), null, null);
+            }
+            catch (StorageException e) {
+                if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    removeIfUnchanged(key, entry, e);
+                    throw e;
+                }
+                revalidated = cached;
+            }
+            this.revalidations.incrementAndGet();
+            put(key, new Entry(revalidated, revalidated.getProperties().getEtag(), 1));
+            return revalidated;
+        }
+
+        this.misses.incrementAndGet();
+        CloudFileDirectory loaded = newReference(directory);
+        loaded.downloadAttributes();
+        put(key, new Entry(loaded, loaded.getProperties().getEtag(), 1));
+        return loaded;
+    }
+
+    /**
+     * Returns a new reference to the same file, without any of the attributes of the given one.
+     */
+    private static CloudFile newReference(CloudFile file) throws StorageException {
+        try {
+            return file.getParent().getFileReference(file.getName());
+        }
+        catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a new reference to the same directory, without any of the attributes of the given one.
+     */
+    private static CloudFileDirectory newReference(CloudFileDirectory directory) throws StorageException {
+        try {
+            CloudFileDirectory parent = directory.getParent();
+            return parent != null ? parent.getDirectoryReference(directory.getName()) : directory.getShare().getRootDirectoryReference();
+        }
+        catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies listed items, keeping the properties of files. The service version of SDK 4.2.0 returns only the
+     * name of a listed directory, so a new reference is an exact copy.
+     */
+    private static List<ListFileItem> copyOf(List<ListFileItem> items) throws StorageException {
+        List<ListFileItem> copies = new ArrayList<>(items.size());
+        for (ListFileItem item : items) {
+            copies.add(item instanceof CloudFile ? new CloudFile((CloudFile) item) : newReference((CloudFileDirectory) item));
+        }
+        return Collections.unmodifiableList(copies);
+    }
+
+    /**
+     * Returns the entry if it is cached and within its time to live, counting a hit.
+     */
+    private synchronized Entry getFresh(String key) {
+        Entry entry = this.entries.get(key);
+        if (entry != null && System.nanoTime() - entry.loadedAtNanos < this.timeToLiveNanos) {
+            this.hits.incrementAndGet();
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the entry if it is cached but expired and can be revalidated by its ETag.
+     */
+    private synchronized Entry getExpired(String key) {
+        Entry entry = this.entries.get(key);
+        return entry != null && entry.etag != null ? entry : null;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        remove(key);
+        this.entries.put(key, entry);
+        this.weight += entry.weight;
+
+        // Evict the least recently used entries; the one just added is the most recent and always stays
+        Iterator<Map.Entry<String, Entry>> eldest = this.entries.entrySet().iterator();
+        while (this.weight > this.maxWeight && this.entries.size() > 1) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            this.weight -= evicted.getValue().weight;
+            eldest.remove();
+            this.evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops an entry whose item no longer exists, unless it has been replaced since it was read.
+     */
+    private synchronized void removeIfUnchanged(String key, Entry entry, StorageException failure) {
+        if (failure.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND && this.entries.get(key) == entry) {
+            remove(key);
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = this.entries.remove(key);
+        if (removed != null) {
+            this.weight -= removed.weight;
+        }
+    }
+
+    /**
+     * A cached value with the ETag it can be revalidated by.
+     */
+    private static final class Entry {
+
+        private final Object value;
+        private final String etag;
+        private final int weight;
+        private final long loadedAtNanos = System.nanoTime();
+
+        Entry(Object value, String etag, int weight) {
+            this.value = value;
+            this.etag = etag;
+            this.weight = weight;
+        }
+    }
+}
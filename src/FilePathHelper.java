@@ -0,0 +1,101 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.CloudFileDirectory;
+import com.microsoft.azure.storage.file.ListFileItem;
+
+import java.net.URISyntaxException;
+
+/**
+ * A class which provides methods to map items between directory trees by their relative paths.
+ */
+final class FilePathHelper {
+
+    /**
+     * Returns the path of the item relative to the root, with '/' separators and no leading separator.
+     *
+     * @param root The directory the path is relative to.
+     * @param item A file or directory below the root.
+     * @return The relative path, or an empty string for the root itself.
+     */
+    static String relativePath(CloudFileDirectory root, ListFileItem item) {
+        String rootPath = trimSlashes(root.getUri().getPath());
+        String itemPath = trimSlashes(item.getUri().getPath());
+        if (!itemPath.equals(rootPath) && !itemPath.startsWith(rootPath + "/")) {
+            throw new IllegalArgumentException(String.format("\"%s\" is not below \"%s\".", item.getUri(), root.getUri()));
+        }
+        return trimSlashes(itemPath.substring(rootPath.length()));
+    }
+
+    /**
+     * Returns the parent part of a relative path.
+     *
+     * @param relativePath The relative path.
+     * @return The relative path of the parent, or an empty string for items directly below the root.
+     */
+    static String parentPath(String relativePath) {
+        int separator = relativePath.lastIndexOf('/');
+        return separator < 0 ? "" : relativePath.substring(0, separator);
+    }
+
+    /**
+     * Returns a reference to the directory at the relative path below the root.
+     *
+     * @param root The root directory.
+     * @param relativePath The relative path, or an empty string for the root itself.
+     * @return The directory reference.
+     *
+     * @throws URISyntaxException
+     * @throws StorageException
+     */
+    static CloudFileDirectory getDirectoryReference(CloudFileDirectory root, String relativePath) throws URISyntaxException, StorageException {
+        CloudFileDirectory directory = root;
+        if (!relativePath.isEmpty()) {
+            for (String segment : relativePath.split("/")) {
+                directory = directory.getDirectoryReference(segment);
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Returns a reference to the file at the relative path below the root.
+     *
+     * @param root The root directory.
+     * @param relativePath The relative path of the file.
+     * @return The file reference.
+     *
+     * @throws URISyntaxException
+     * @throws StorageException
+     */
+    static CloudFile getFileReference(CloudFileDirectory root, String relativePath) throws URISyntaxException, StorageException {
+        int separator = relativePath.lastIndexOf('/');
+        return getDirectoryReference(root, parentPath(relativePath)).getFileReference(relativePath.substring(separator + 1));
+    }
+
+    private static String trimSlashes(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+}
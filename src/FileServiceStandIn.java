@@ -0,0 +1,1150 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.file.CloudFileClient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the File service REST API, for running the samples, benchmarks and load tests
+ * without a storage account or a network.
+ *
+ * It implements the subset of the API the SDK uses for shares, directories and files: create, delete, properties,
+ * metadata, listing, ranged upload and download, range listing and copy, plus the service properties. Everything is
+ * kept in memory, requests are not authenticated and copies complete immediately.
+ *
+ * For load tests it can make itself slower than it is: every request can be delayed by a fixed latency plus a
+ * random jitter, a share of the requests can be held back much longer like the stragglers of a real service,
+ * request and response bodies can be held to a bandwidth shared by all connections like a single link, and a share
+ * of the requests can be rejected with 503 ServerBusy as the service does when throttling.
+ *
+ * It speaks plain HTTP/1.1 with keep-alive over its own sockets rather than through com.sun.net.httpserver, which
+ * changes the case of response header names and so hides the x-ms-meta- headers from the SDK.
+ */
+final class FileServiceStandIn implements AutoCloseable {
+
+    static final String ACCOUNT_NAME = "devstoreaccount1";
+
+    /**
+     * The well-known development storage key. The stand-in does not check signatures but the SDK needs a valid key.
+     */
+    static final String ACCOUNT_KEY = "Eby8vdM02xNOcqFlqUwJPLlmEtlCDXJ1OUzFT50uSRZ6IFsuFq2UVErCz4I6tq/K1SZFPTOtr/KBHBeksoGMGw==";
+
+    private static final String DEFAULT_SERVICE_PROPERTIES = "<?xml version=\"1.0\" encoding=\"utf-8\"?><StorageServiceProperties>"
+            + "<HourMetrics><Version>1.0</Version><Enabled>false</Enabled><RetentionPolicy><Enabled>false</Enabled></RetentionPolicy></HourMetrics>"
+            + "<MinuteMetrics><Version>1.0</Version><Enabled>false</Enabled><RetentionPolicy><Enabled>false</Enabled></RetentionPolicy></MinuteMetrics>"
+            + "<Cors /></StorageServiceProperties>";
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final NavigableMap<String, Resource> resources = new ConcurrentSkipListMap<>();
+    private final AtomicLong etagCounter = new AtomicLong(System.currentTimeMillis());
+    private volatile byte[] serviceProperties = DEFAULT_SERVICE_PROPERTIES.getBytes(StandardCharsets.UTF_8);
+
+    private static final int TRANSMIT_CHUNK_SIZE = 64 * 1024;
+
+    private volatile long latencyNanos;
+    private volatile long latencyJitterNanos;
+    private volatile double stragglerRate;
+    private volatile long stragglerDelayNanos;
+    private volatile long bandwidthBytesPerSecond;
+    private volatile double throttleRate;
+    private final Object link = new Object();
+    private long linkFreeNanos;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    private FileServiceStandIn(ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+    }
+
+    /**
+     * Starts a stand-in listening on an ephemeral port of the loopback interface.
+     *
+     * @return The running stand-in, which must be closed when no longer needed.
+     *
+     * @throws IOException
+     */
+    static FileServiceStandIn start() throws IOException {
+        final FileServiceStandIn standIn = new FileServiceStandIn(new ServerSocket(0, 0, InetAddress.getLoopbackAddress()));
+        standIn.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                standIn.accept();
+            }
+        });
+        return standIn;
+    }
+
+    /**
+     * @return The connection string of the stand-in.
+     */
+    String getConnectionString() {
+        return String.format("DefaultEndpointsProtocol=http;AccountName=%s;AccountKey=%s;FileEndpoint=http://%s:%d/%s",
+                ACCOUNT_NAME, ACCOUNT_KEY,
+                this.serverSocket.getInetAddress().getHostAddress(), this.serverSocket.getLocalPort(), ACCOUNT_NAME);
+    }
+
+    /**
+     * Creates a new file client connected to the stand-in.
+     *
+     * @return The file client.
+     */
+    CloudFileClient createFileClient() throws URISyntaxException, InvalidKeyException {
+        Properties prop = new Properties();
+        prop.setProperty("StorageConnectionString", getConnectionString());
+        return FileClientProvider.createFileClient(prop);
+    }
+
+    /**
+     * Delays every request before it is handled.
+     *
+     * @param latency The fixed delay.
+     * @param jitter The upper bound of a uniformly distributed random delay added to the fixed one.
+     * @param unit The unit of latency and jitter.
+     */
+    void setLatency(long latency, long jitter, TimeUnit unit) {
+        if (latency < 0 || jitter < 0) {
+            throw new IllegalArgumentException("The latency and jitter must not be negative.");
+        }
+
+        this.latencyNanos = unit.toNanos(latency);
+        this.latencyJitterNanos = unit.toNanos(jitter);
+    }
+
+    /**
+     * Delays a random share of the requests further, on top of the latency, to give the latency a long tail.
+     *
+     * @param rate The share of requests to delay, between 0 and 1.
+     * @param delay The additional delay of those requests.
+     * @param unit The unit of the delay.
+     */
+    void setStragglers(double rate, long delay, TimeUnit unit) {
+        if (rate < 0 || rate > 1 || delay < 0) {
+            throw new IllegalArgumentException("The straggler rate must be between 0 and 1 and the delay must not be negative.");
+        }
+
+        this.stragglerRate = rate;
+        this.stragglerDelayNanos = unit.toNanos(delay);
+    }
+
+    /**
+     * Limits the rate at which request and response bodies are transferred. The limit is shared by all connections,
+     * so concurrent transfers slow each other down.
+     *
+     * @param bytesPerSecond The bandwidth in bytes per second, or 0 for no limit.
+     */
+    void setBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("The bandwidth must not be negative.");
+        }
+
+        this.bandwidthBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Rejects a random share of the requests with 503 ServerBusy.
+     *
+     * @param rate The share of requests to reject, between 0 and 1.
+     */
+    void setThrottleRate(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("The throttle rate must be between 0 and 1.");
+        }
+
+        this.throttleRate = rate;
+    }
+
+    /**
+     * @return The number of requests received.
+     */
+    long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * @return The number of requests rejected with 503 ServerBusy.
+     */
+    long getThrottledCount() {
+        return this.throttledCount.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.serverSocket.close();
+        }
+        catch (IOException e) {
+            // Closing anyway
+        }
+        this.executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                final Socket socket = this.serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                this.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+            catch (IOException e) {
+                // The server socket was closed
+            }
+        }
+    }
+
+    /**
+     * Serves the requests of one connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            InputStream input = new BufferedInputStream(connection.getInputStream());
+            OutputStream output = new BufferedOutputStream(connection.getOutputStream());
+            Exchange exchange;
+            while ((exchange = Exchange.read(input, output)) != null) {
+                dispatch(exchange);
+                output.flush();
+                if ("close".equalsIgnoreCase(exchange.requestHeaders.get("Connection"))) {
+                    break;
+                }
+            }
+        }
+        catch (SocketException | EOFException e) {
+            // The client went away
+        }
+        catch (IOException e) {
+            // The connection is dropped like a real server would on a broken request
+        }
+    }
+
+    /**
+     * Handles a request, after any injected delay or throttling, and turns any failure into an error response.
+     */
+    void dispatch(Exchange exchange) throws IOException {
+        this.requestCount.incrementAndGet();
+        long jitter = this.latencyJitterNanos;
+        pause(this.latencyNanos + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0));
+        double stragglerRate = this.stragglerRate;
+        if (stragglerRate > 0 && ThreadLocalRandom.current().nextDouble() < stragglerRate) {
+            pause(this.stragglerDelayNanos);
+        }
+        reserveBandwidth(exchange.body.length);
+
+        try {
+            double throttleRate = this.throttleRate;
+            if (throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate) {
+                this.throttledCount.incrementAndGet();
+                throw new ServiceError(503, "ServerBusy");
+            }
+            handle(exchange);
+        }
+        catch (ServiceError e) {
+            sendError(exchange, e.status, e.code);
+        }
+        catch (RuntimeException e) {
+            sendError(exchange, 500, "InternalError");
+        }
+    }
+
+    private void handle(Exchange exchange) throws IOException {
+        String method = exchange.method;
+        Map<String, String> query = parseQuery(exchange.uri);
+        String path = resourcePath(exchange.uri);
+        String restype = query.get("restype");
+        String comp = query.get("comp");
+
+        if (path.isEmpty()) {
+            if ("list".equals(comp)) {
+                listShares(exchange, query);
+            }
+            else if ("service".equals(restype) && "properties".equals(comp)) {
+                if ("GET".equals(method)) {
+                    send(exchange, 200, new LinkedHashMap<>(), this.serviceProperties);
+                }
+                else {
+                    this.serviceProperties = exchange.body;
+                    send(exchange, 202, new LinkedHashMap<>(), null);
+                }
+            }
+            else {
+                throw new ServiceError(400, "InvalidQueryParameterValue");
+            }
+            return;
+        }
+
+        if ("share".equals(restype)) {
+            handleShare(exchange, method, comp, path);
+        }
+        else if ("directory".equals(restype)) {
+            if ("list".equals(comp)) {
+                listDirectory(exchange, query, path);
+            }
+            else {
+                handleDirectory(exchange, method, comp, path);
+            }
+        }
+        else {
+            handleFile(exchange, method, comp, query, path);
+        }
+    }
+
+    private void handleShare(Exchange exchange, String method, String comp, String path) throws IOException {
+        switch (method) {
+            case "PUT":
+                if (comp == null) {
+                    Resource share = new Resource(Kind.SHARE);
+                    share.metadata.putAll(readMetadata(exchange));
+                    share.quota = readQuota(exchange, share.quota);
+                    touch(share);
+                    if (this.resources.putIfAbsent(path, share) != null) {
+                        throw new ServiceError(409, "ShareAlreadyExists");
+                    }
+                    sendAttributes(exchange, 201, share, false);
+                }
+                else {
+                    Resource share = get(path, Kind.SHARE, "ShareNotFound");
+                    synchronized (share) {
+                        requireMatch(exchange.requestHeaders, share);
+                        if ("metadata".equals(comp)) {
+                            share.metadata.clear();
+                            share.metadata.putAll(readMetadata(exchange));
+                        }
+                        else if ("properties".equals(comp)) {
+                            share.quota = readQuota(exchange, share.quota);
+                        }
+                        touch(share);
+                    }
+                    sendAttributes(exchange, 200, share, false);
+                }
+                break;
+            case "GET":
+            case "HEAD":
+                Resource share = get(path, Kind.SHARE, "ShareNotFound");
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("x-ms-share-quota", Integer.toString(share.quota));
+                sendAttributes(exchange, 200, share, true, headers);
+                break;
+            case "DELETE":
+                get(path, Kind.SHARE, "ShareNotFound");
+                this.resources.subMap(path + "/", path + "0").clear();
+                this.resources.remove(path);
+                send(exchange, 202, new LinkedHashMap<>(), null);
+                break;
+            default:
+                throw new ServiceError(405, "UnsupportedHttpVerb");
+        }
+    }
+
+    private void handleDirectory(Exchange exchange, String method, String comp, String path) throws IOException {
+        switch (method) {
+            case "PUT":
+                if (comp == null) {
+                    requireParent(path);
+                    Resource directory = new Resource(Kind.DIRECTORY);
+                    directory.metadata.putAll(readMetadata(exchange));
+                    touch(directory);
+                    if (this.resources.putIfAbsent(path, directory) != null) {
+                        throw new ServiceError(409, "ResourceAlreadyExists");
+                    }
+                    sendAttributes(exchange, 201, directory, false);
+                }
+                else {
+                    Resource directory = getDirectory(path);
+                    synchronized (directory) {
+                        requireMatch(exchange.requestHeaders, directory);
+                        directory.metadata.clear();
+                        directory.metadata.putAll(readMetadata(exchange));
+                        touch(directory);
+                    }
+                    sendAttributes(exchange, 200, directory, false);
+                }
+                break;
+            case "GET":
+            case "HEAD":
+                sendAttributes(exchange, 200, getDirectory(path), true);
+                break;
+            case "DELETE":
+                getDirectory(path);
+                if (!this.resources.subMap(path + "/", path + "0").isEmpty()) {
+                    throw new ServiceError(409, "DirectoryNotEmpty");
+                }
+                this.resources.remove(path);
+                send(exchange, 202, new LinkedHashMap<>(), null);
+                break;
+            default:
+                throw new ServiceError(405, "UnsupportedHttpVerb");
+        }
+    }
+
+    private void handleFile(Exchange exchange, String method, String comp, Map<String, String> query, String path) throws IOException {
+        Map<String, String> request = exchange.requestHeaders;
+        switch (method) {
+            case "PUT":
+                if (comp == null && request.get("x-ms-copy-source") != null) {
+                    copyFile(exchange, path, request.get("x-ms-copy-source"));
+                }
+                else if (comp == null) {
+                    requireParent(path);
+                    Resource file = new Resource(Kind.FILE);
+                    file.content = new byte[toIntLength(Long.parseLong(request.get("x-ms-content-length")))];
+                    file.metadata.putAll(readMetadata(exchange));
+                    file.properties.putAll(readContentProperties(request));
+                    touch(file);
+                    this.resources.put(path, file);
+                    sendAttributes(exchange, 201, file, false);
+                }
+                else if ("range".equals(comp)) {
+                    putRange(exchange, path, request);
+                }
+                else if ("metadata".equals(comp)) {
+                    Resource file = getFile(path);
+                    synchronized (file) {
+                        requireMatch(request, file);
+                        file.metadata.clear();
+                        file.metadata.putAll(readMetadata(exchange));
+                        touch(file);
+                    }
+                    sendAttributes(exchange, 200, file, false);
+                }
+                else if ("properties".equals(comp)) {
+                    Resource file = getFile(path);
+                    synchronized (file) {
+                        requireMatch(request, file);
+                        file.properties.clear();
+                        file.properties.putAll(readContentProperties(request));
+                        String length = request.get("x-ms-content-length");
+                        if (length != null) {
+                            file.content = Arrays.copyOf(file.content, toIntLength(Long.parseLong(length)));
+                            file.ranges.tailMap((long) file.content.length, true).clear();
+                            Map.Entry<Long, Long> last = file.ranges.lastEntry();
+                            if (last != null && last.getValue() >= file.content.length) {
+                                last.setValue((long) file.content.length - 1);
+                            }
+                        }
+                        touch(file);
+                    }
+                    sendAttributes(exchange, 200, file, false);
+                }
+                else if ("copy".equals(comp)) {
+                    getFile(path);
+                    throw new ServiceError(409, "NoPendingCopyOperation");
+                }
+                else {
+                    throw new ServiceError(400, "InvalidQueryParameterValue");
+                }
+                break;
+            case "GET":
+            case "HEAD":
+                if ("rangelist".equals(comp)) {
+                    listRanges(exchange, path);
+                }
+                else {
+                    getFileContent(exchange, method, path, request);
+                }
+                break;
+            case "DELETE":
+                getFile(path);
+                this.resources.remove(path);
+                send(exchange, 202, new LinkedHashMap<>(), null);
+                break;
+            default:
+                throw new ServiceError(405, "UnsupportedHttpVerb");
+        }
+    }
+
+    private void putRange(Exchange exchange, String path, Map<String, String> request) throws IOException {
+        Resource file = getFile(path);
+        long[] range = parseRange(request.get("x-ms-range") != null ? request.get("x-ms-range") : request.get("Range"));
+        byte[] body = exchange.body;
+        synchronized (file) {
+            requireMatch(request, file);
+            if (range[1] >= file.content.length) {
+                throw new ServiceError(416, "InvalidRange");
+            }
+            if ("clear".equalsIgnoreCase(request.get("x-ms-write"))) {
+                Arrays.fill(file.content, (int) range[0], (int) range[1] + 1, (byte) 0);
+                clearRange(file.ranges, range[0], range[1]);
+            }
+            else {
+                if (body.length != range[1] - range[0] + 1) {
+                    throw new ServiceError(400, "InvalidHeaderValue");
+                }
+                String contentMD5 = request.get("Content-MD5");
+                if (contentMD5 != null && !contentMD5.equals(md5(body))) {
+                    throw new ServiceError(400, "Md5Mismatch");
+                }
+                System.arraycopy(body, 0, file.content, (int) range[0], body.length);
+                addRange(file.ranges, range[0], range[1]);
+            }
+            touch(file);
+        }
+        sendAttributes(exchange, 201, file, false);
+    }
+
+    private void getFileContent(Exchange exchange, String method, String path, Map<String, String> request) throws IOException {
+        Resource file = getFile(path);
+        String rangeHeader = request.get("x-ms-range") != null ? request.get("x-ms-range") : request.get("Range");
+
+        byte[] body;
+        Map<String, String> headers = new LinkedHashMap<>();
+        int status = 200;
+        synchronized (file) {
+            if (!matches(request, file)) {
+                throw new ServiceError(412, "ConditionNotMet");
+            }
+            if (notModified(request, file)) {
+                send(exchange, 304, new LinkedHashMap<>(), null);
+                return;
+            }
+            if (rangeHeader != null && "GET".equals(method)) {
+                long[] range = parseRange(rangeHeader);
+                if (range[0] >= file.content.length) {
+                    throw new ServiceError(416, "InvalidRange");
+                }
+                int end = (int) Math.min(range[1], file.content.length - 1);
+                boolean rangeMD5 = "true".equalsIgnoreCase(request.get("x-ms-range-get-content-md5"));
+                if (rangeMD5 && end - range[0] + 1 > 4 * 1024 * 1024) {
+                    throw new ServiceError(400, "InvalidHeaderValue");
+                }
+                body = Arrays.copyOfRange(file.content, (int) range[0], end + 1);
+                headers.put("Content-Range", String.format("bytes %d-%d/%d", range[0], end, file.content.length));
+                status = 206;
+                copyAttributeHeaders(file, headers, true);
+
+                // As in the service, a range carries the file's MD5 in its own header and Content-MD5 only on request
+                String fileMD5 = headers.remove("Content-MD5");
+                if (fileMD5 != null) {
+                    headers.put("x-ms-content-md5", fileMD5);
+                }
+                if (rangeMD5) {
+                    headers.put("Content-MD5", md5(body));
+                }
+            }
+            else {
+                body = "GET".equals(method) ? file.content.clone() : null;
+                copyAttributeHeaders(file, headers, true);
+            }
+            headers.put("x-ms-content-length", Long.toString(file.content.length));
+            headers.put("x-ms-type", "File");
+            headers.put("Accept-Ranges", "bytes");
+        }
+        send(exchange, status, headers, body);
+    }
+
+    private void listRanges(Exchange exchange, String path) throws IOException {
+        Resource file = getFile(path);
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><Ranges>");
+        Map<String, String> headers = new LinkedHashMap<>();
+        synchronized (file) {
+            for (Map.Entry<Long, Long> range : file.ranges.entrySet()) {
+                xml.append("<Range><Start>").append(range.getKey()).append("</Start><End>").append(range.getValue()).append("</End></Range>");
+            }
+            headers.put("x-ms-content-length", Long.toString(file.content.length));
+            copyAttributeHeaders(file, headers, false);
+        }
+        xml.append("</Ranges>");
+        send(exchange, 200, headers, xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void copyFile(Exchange exchange, String path, String copySource) throws IOException {
+        requireParent(path);
+        Resource source = getFile(resourcePath(URI.create(copySource)));
+        Resource copy = new Resource(Kind.FILE);
+        Map<String, String> metadata = readMetadata(exchange);
+        synchronized (source) {
+            copy.content = source.content.clone();
+            copy.ranges.putAll(source.ranges);
+            copy.properties.putAll(source.properties);
+            copy.metadata.putAll(metadata.isEmpty() ? source.metadata : metadata);
+        }
+        copy.copyId = UUID.randomUUID().toString();
+        copy.copySource = copySource;
+        copy.copyCompletionTime = new Date();
+        touch(copy);
+        this.resources.put(path, copy);
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("x-ms-copy-id", copy.copyId);
+        headers.put("x-ms-copy-status", "success");
+        sendAttributes(exchange, 202, copy, false, headers);
+    }
+
+    private void listShares(Exchange exchange, Map<String, String> query) throws IOException {
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><EnumerationResults ServiceEndpoint=\"")
+                .append(escape(serviceEndpoint())).append("\"><Prefix>").append(escape(prefix)).append("</Prefix><Shares>");
+        for (Map.Entry<String, Resource> entry : this.resources.entrySet()) {
+            if (entry.getValue().kind == Kind.SHARE && entry.getKey().startsWith(prefix)) {
+                Resource share = entry.getValue();
+                xml.append("<Share><Name>").append(escape(entry.getKey())).append("</Name><Properties><Last-Modified>")
+                        .append(formatDate(share.lastModified)).append("</Last-Modified><Etag>").append(escape(share.etag))
+                        .append("</Etag><Quota>").append(share.quota).append("</Quota></Properties></Share>");
+            }
+        }
+        xml.append("</Shares><NextMarker /></EnumerationResults>");
+        send(exchange, 200, new LinkedHashMap<>(), xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void listDirectory(Exchange exchange, Map<String, String> query, String path) throws IOException {
+        getDirectory(path);
+        String marker = query.get("marker");
+        int maxResults = query.containsKey("maxresults") ? Integer.parseInt(query.get("maxresults")) : 5000;
+
+        int separator = path.indexOf('/');
+        String shareName = separator < 0 ? path : path.substring(0, separator);
+        String directoryPath = separator < 0 ? "" : path.substring(separator + 1);
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><EnumerationResults ServiceEndpoint=\"")
+                .append(escape(serviceEndpoint())).append("\" ShareName=\"").append(escape(shareName))
+                .append("\" DirectoryPath=\"").append(escape(directoryPath)).append("\"><Entries>");
+
+        String nextMarker = null;
+        int count = 0;
+        NavigableMap<String, Resource> descendants = this.resources.subMap(path + "/", true, path + "0", false);
+        if (marker != null) {
+            descendants = descendants.tailMap(path + "/" + marker, true);
+        }
+        for (Map.Entry<String, Resource> entry : descendants.entrySet()) {
+            String name = entry.getKey().substring(path.length() + 1);
+            if (name.indexOf('/') >= 0) {
+                continue;
+            }
+            if (count == maxResults) {
+                nextMarker = name;
+                break;
+            }
+            Resource resource = entry.getValue();
+            if (resource.kind == Kind.DIRECTORY) {
+                xml.append("<Directory><Name>").append(escape(name)).append("</Name><Properties /></Directory>");
+            }
+            else {
+                xml.append("<File><Name>").append(escape(name)).append("</Name><Properties><Content-Length>")
+                        .append(resource.content.length).append("</Content-Length></Properties></File>");
+            }
+            count++;
+        }
+        xml.append("</Entries>");
+        xml.append(nextMarker == null ? "<NextMarker />" : "<NextMarker>" + escape(nextMarker) + "</NextMarker>");
+        xml.append("</EnumerationResults>");
+        send(exchange, 200, new LinkedHashMap<>(), xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Resource get(String path, Kind kind, String notFoundCode) {
+        Resource resource = this.resources.get(path);
+        if (resource == null || resource.kind != kind) {
+            throw new ServiceError(404, notFoundCode);
+        }
+        return resource;
+    }
+
+    private Resource getFile(String path) {
+        requireShare(path);
+        return get(path, Kind.FILE, "ResourceNotFound");
+    }
+
+    private Resource getDirectory(String path) {
+        requireShare(path);
+        Resource resource = this.resources.get(path);
+        if (resource == null || resource.kind == Kind.FILE) {
+            throw new ServiceError(404, "ResourceNotFound");
+        }
+        return resource;
+    }
+
+    private void requireShare(String path) {
+        int separator = path.indexOf('/');
+        get(separator < 0 ? path : path.substring(0, separator), Kind.SHARE, "ShareNotFound");
+    }
+
+    private void requireParent(String path) {
+        requireShare(path);
+        Resource parent = this.resources.get(path.substring(0, path.lastIndexOf('/')));
+        if (parent == null || parent.kind == Kind.FILE) {
+            throw new ServiceError(404, "ParentNotFound");
+        }
+    }
+
+    private void touch(Resource resource) {
+        resource.etag = String.format("\"0x%X\"", this.etagCounter.incrementAndGet());
+        resource.lastModified = new Date();
+    }
+
+    private void sendAttributes(Exchange exchange, int status, Resource resource, boolean includeMetadata) throws IOException {
+        sendAttributes(exchange, status, resource, includeMetadata, new LinkedHashMap<>());
+    }
+
+    private void sendAttributes(Exchange exchange, int status, Resource resource, boolean includeMetadata, Map<String, String> headers) throws IOException {
+        synchronized (resource) {
+            // Writes check their conditions before changing the resource, which gives it a new ETag
+            boolean read = "GET".equals(exchange.method) || "HEAD".equals(exchange.method);
+            if (read && !matches(exchange.requestHeaders, resource)) {
+                throw new ServiceError(412, "ConditionNotMet");
+            }
+            if (read && notModified(exchange.requestHeaders, resource)) {
+                send(exchange, 304, new LinkedHashMap<>(), null);
+                return;
+            }
+            if (resource.kind == Kind.FILE) {
+                headers.put("x-ms-content-length", Long.toString(resource.content.length));
+                headers.put("x-ms-type", "File");
+            }
+            copyAttributeHeaders(resource, headers, includeMetadata);
+        }
+        send(exchange, status, headers, null);
+    }
+
+    private static void copyAttributeHeaders(Resource resource, Map<String, String> headers, boolean includeMetadata) {
+        headers.put("ETag", resource.etag);
+        headers.put("Last-Modified", formatDate(resource.lastModified));
+        for (Map.Entry<String, String> property : resource.properties.entrySet()) {
+            headers.put(property.getKey(), property.getValue());
+        }
+        if (resource.copyId != null) {
+            headers.put("x-ms-copy-id", resource.copyId);
+            headers.put("x-ms-copy-status", "success");
+            headers.put("x-ms-copy-source", resource.copySource);
+            headers.put("x-ms-copy-progress", String.format("%d/%d", resource.content.length, resource.content.length));
+            headers.put("x-ms-copy-completion-time", formatDate(resource.copyCompletionTime));
+        }
+        if (includeMetadata) {
+            for (Map.Entry<String, String> entry : resource.metadata.entrySet()) {
+                headers.put("x-ms-meta-" + entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static void requireMatch(Map<String, String> request, Resource resource) {
+        if (!matches(request, resource)) {
+            throw new ServiceError(412, "ConditionNotMet");
+        }
+    }
+
+    private static boolean matches(Map<String, String> request, Resource resource) {
+        String ifMatch = request.get("If-Match");
+        return ifMatch == null || ifMatch.equals("*") || ifMatch.equals(resource.etag);
+    }
+
+    private static boolean notModified(Map<String, String> request, Resource resource) {
+        String ifNoneMatch = request.get("If-None-Match");
+        return ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.equals(resource.etag));
+    }
+
+    private static Map<String, String> readMetadata(Exchange exchange) {
+        Map<String, String> metadata = new HashMap<>();
+        for (Map.Entry<String, String> header : exchange.requestHeaders.entrySet()) {
+            if (header.getKey().toLowerCase(Locale.US).startsWith("x-ms-meta-")) {
+                metadata.put(header.getKey().substring("x-ms-meta-".length()), header.getValue());
+            }
+        }
+        return metadata;
+    }
+
+    private static int readQuota(Exchange exchange, int current) {
+        String quota = exchange.requestHeaders.get("x-ms-share-quota");
+        return quota != null ? Integer.parseInt(quota) : current;
+    }
+
+    private static Map<String, String> readContentProperties(Map<String, String> request) {
+        Map<String, String> properties = new HashMap<>();
+        String[][] names = {
+                { "x-ms-cache-control", "Cache-Control" },
+                { "x-ms-content-disposition", "Content-Disposition" },
+                { "x-ms-content-encoding", "Content-Encoding" },
+                { "x-ms-content-language", "Content-Language" },
+                { "x-ms-content-md5", "Content-MD5" },
+                { "x-ms-content-type", "Content-Type" } };
+        for (String[] name : names) {
+            String value = request.get(name[0]);
+            if (value != null) {
+                properties.put(name[1], value);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Adds [start, end] to the set of written ranges, merging it with any overlapping or adjacent range.
+     */
+    static void addRange(TreeMap<Long, Long> ranges, long start, long end) {
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start - 1) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Iterator<Map.Entry<Long, Long>> overlapping = ranges.subMap(start, true, end + 1, true).entrySet().iterator();
+        while (overlapping.hasNext()) {
+            end = Math.max(end, overlapping.next().getValue());
+            overlapping.remove();
+        }
+        ranges.put(start, end);
+    }
+
+    /**
+     * Removes [start, end] from the set of written ranges, splitting any range which straddles it.
+     */
+    static void clearRange(TreeMap<Long, Long> ranges, long start, long end) {
+        Map.Entry<Long, Long> before = ranges.lowerEntry(start);
+        if (before != null && before.getValue() >= start) {
+            long beforeEnd = before.getValue();
+            ranges.put(before.getKey(), start - 1);
+            if (beforeEnd > end) {
+                ranges.put(end + 1, beforeEnd);
+            }
+        }
+        Iterator<Map.Entry<Long, Long>> overlapping = ranges.subMap(start, true, end, true).entrySet().iterator();
+        while (overlapping.hasNext()) {
+            Map.Entry<Long, Long> range = overlapping.next();
+            long rangeEnd = range.getValue();
+            overlapping.remove();
+            if (rangeEnd > end) {
+                ranges.put(end + 1, rangeEnd);
+                break;
+            }
+        }
+    }
+
+    private static String md5(byte[] content) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(content));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long[] parseRange(String header) {
+        if (header == null || !header.startsWith("bytes=")) {
+            throw new ServiceError(400, "InvalidHeaderValue");
+        }
+        String[] bounds = header.substring("bytes=".length()).split("-");
+        long start = Long.parseLong(bounds[0]);
+        long end = bounds.length > 1 && !bounds[1].isEmpty() ? Long.parseLong(bounds[1]) : Long.MAX_VALUE;
+        return new long[] { start, end };
+    }
+
+    private static int toIntLength(long length) {
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw new ServiceError(400, "OutOfRangeInput");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Returns the share-relative resource path of the request, without the account and surrounding slashes.
+     */
+    private static String resourcePath(URI uri) {
+        String path = uri.getPath();
+        String accountPrefix = "/" + ACCOUNT_NAME;
+        if (path.startsWith(accountPrefix)) {
+            path = path.substring(accountPrefix.length());
+        }
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private static Map<String, String> parseQuery(URI uri) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (uri.getRawQuery() != null) {
+            for (String parameter : uri.getRawQuery().split("&")) {
+                int separator = parameter.indexOf('=');
+                String name = separator < 0 ? parameter : parameter.substring(0, separator);
+                String value = separator < 0 ? "" : parameter.substring(separator + 1);
+                query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private String serviceEndpoint() {
+        return String.format("http://%s:%d/%s/", this.serverSocket.getInetAddress().getHostAddress(), this.serverSocket.getLocalPort(), ACCOUNT_NAME);
+    }
+
+    /**
+     * Sends the response, with the headers every response of the service carries.
+     */
+    void send(Exchange exchange, int status, Map<String, String> headers, byte[] body) throws IOException {
+        boolean hasBody = body != null && !"HEAD".equals(exchange.method);
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(status < 400 ? " OK" : " Error").append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("x-ms-request-id: ").append(UUID.randomUUID()).append("\r\n");
+        head.append("x-ms-version: 2016-05-31\r\n");
+        head.append("Date: ").append(formatDate(new Date())).append("\r\n");
+        if (!"HEAD".equals(exchange.method) && status != 304) {
+            head.append("Content-Length: ").append(hasBody ? body.length : 0).append("\r\n");
+        }
+        head.append("\r\n");
+
+        exchange.output.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (hasBody) {
+            for (int offset = 0; offset < body.length; offset += TRANSMIT_CHUNK_SIZE) {
+                int length = Math.min(TRANSMIT_CHUNK_SIZE, body.length - offset);
+                reserveBandwidth(length);
+                exchange.output.write(body, offset, length);
+            }
+        }
+    }
+
+    /**
+     * Waits until the shared link has carried the given number of bytes, if the bandwidth is limited.
+     */
+    private void reserveBandwidth(long bytes) {
+        long bytesPerSecond = this.bandwidthBytesPerSecond;
+        if (bytesPerSecond <= 0 || bytes == 0) {
+            return;
+        }
+
+        long finish;
+        synchronized (this.link) {
+            finish = Math.max(System.nanoTime(), this.linkFreeNanos) + TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+            this.linkFreeNanos = finish;
+        }
+        pause(finish - System.nanoTime());
+    }
+
+    private static void pause(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void sendError(Exchange exchange, int status, String code) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("x-ms-error-code", code);
+        headers.put("Content-Type", "application/xml");
+        String xml = String.format("<?xml version=\"1.0\" encoding=\"utf-8\"?><Error><Code>%s</Code><Message>%s</Message></Error>", code, code);
+        send(exchange, status, headers, "HEAD".equals(exchange.method) ? null : xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String formatDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(date);
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * A request read from a connection and the stream its response is written to.
+     */
+    static final class Exchange {
+
+        final String method;
+        final URI uri;
+        final Map<String, String> requestHeaders;
+        final byte[] body;
+        final OutputStream output;
+
+        private Exchange(String method, URI uri, Map<String, String> requestHeaders, byte[] body, OutputStream output) {
+            this.method = method;
+            this.uri = uri;
+            this.requestHeaders = requestHeaders;
+            this.body = body;
+            this.output = output;
+        }
+
+        /**
+         * Reads the next request of a connection.
+         *
+         * @return The request, or null if the client closed the connection.
+         */
+        static Exchange read(InputStream input, OutputStream output) throws IOException {
+            String requestLine = readLine(input);
+            if (requestLine == null) {
+                return null;
+            }
+            while (requestLine.isEmpty()) {
+                requestLine = readLine(input);
+                if (requestLine == null) {
+                    return null;
+                }
+            }
+
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                throw new IOException("Malformed request line: " + requestLine);
+            }
+
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            String line;
+            while ((line = readLine(input)) != null && !line.isEmpty()) {
+                int separator = line.indexOf(':');
+                if (separator > 0) {
+                    headers.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+                }
+            }
+            if (line == null) {
+                throw new EOFException();
+            }
+
+            if ("100-continue".equalsIgnoreCase(headers.get("Expect"))) {
+                output.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                output.flush();
+            }
+
+            byte[] body;
+            if ("chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                int chunkLength;
+                while ((chunkLength = Integer.parseInt(readLine(input).split(";")[0].trim(), 16)) > 0) {
+                    byte[] chunk = new byte[chunkLength];
+                    readFully(input, chunk);
+                    content.write(chunk);
+                    readLine(input);
+                }
+                while ((line = readLine(input)) != null && !line.isEmpty()) {
+                    // Skip the trailers
+                }
+                body = content.toByteArray();
+            }
+            else {
+                String contentLength = headers.get("Content-Length");
+                body = new byte[contentLength == null ? 0 : Integer.parseInt(contentLength)];
+                readFully(input, body);
+            }
+
+            try {
+                return new Exchange(parts[0], new URI(parts[1]), headers, body, output);
+            }
+            catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private static String readLine(InputStream input) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = input.read()) != '\n') {
+                if (c < 0) {
+                    return line.length() == 0 ? null : line.toString();
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private static void readFully(InputStream input, byte[] buffer) throws IOException {
+            int offset = 0;
+            while (offset < buffer.length) {
+                int read = input.read(buffer, offset, buffer.length - offset);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+        }
+    }
+
+    private enum Kind {
+        SHARE, DIRECTORY, FILE
+    }
+
+    /**
+     * A share, directory or file. Mutable state is guarded by the resource's monitor.
+     */
+    private static final class Resource {
+
+        private final Kind kind;
+        private final Map<String, String> metadata = new HashMap<>();
+        private final Map<String, String> properties = new HashMap<>();
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+        private byte[] content;
+        private String etag;
+        private Date lastModified;
+        private String copyId;
+        private String copySource;
+        private Date copyCompletionTime;
+        private int quota = 5120;
+
+        Resource(Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * A failure reported to the client as an error response.
+     */
+    private static final class ServiceError extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final String code;
+
+        ServiceError(int status, String code) {
+            super(code, null, false, false);
+            this.status = status;
+            this.code = code;
+        }
+    }
+}
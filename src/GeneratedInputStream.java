@@ -0,0 +1,142 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A stream of generated content, produced on the fly in constant memory.
+ *
+ * It returns the same bytes DataGenerator.writeFile writes for the same content and seed, so uploads can be fed
+ * without a local file and still be checked against one. Seeking with skip, mark and reset costs nothing, which
+ * lets the SDK rewind it for retries and lets ranged uploads start anywhere.
+ */
+final class GeneratedInputStream extends InputStream {
+
+    private final long length;
+    private final DataGenerator.Content content;
+    private final long seed;
+    private final ByteBuffer blockBuffer = ByteBuffer.allocate(DataGenerator.BLOCK_SIZE);
+    private long loadedBlock = -1;
+    private long position;
+    private long mark;
+
+    /**
+     * Creates a stream of generated content.
+     *
+     * @param length The number of bytes in the stream.
+     * @param content The kind of content.
+     * @param seed The seed of the content.
+     */
+    GeneratedInputStream(long length, DataGenerator.Content content, long seed) {
+        if (length < 0) {
+            throw new IllegalArgumentException("The length must not be negative.");
+        }
+
+        this.length = length;
+        this.content = content;
+        this.seed = seed;
+    }
+
+    /**
+     * Creates a stream of part of the generated content.
+     *
+     * @param offset The offset within the generated content of the first byte of the stream.
+     * @param length The number of bytes in the stream.
+     * @param content The kind of content.
+     * @param seed The seed of the content.
+     */
+    GeneratedInputStream(long offset, long length, DataGenerator.Content content, long seed) {
+        this(offset + length, content, seed);
+        this.position = offset;
+        this.mark = offset;
+    }
+
+    @Override
+    public int read() {
+        if (this.position >= this.length) {
+            return -1;
+        }
+        int index = load(this.position);
+        this.position++;
+        return this.blockBuffer.get(index) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (this.position >= this.length) {
+            return -1;
+        }
+
+        int read = 0;
+        while (read < len && this.position < this.length) {
+            int index = load(this.position);
+            int count = (int) Math.min(Math.min(len - read, this.blockBuffer.limit() - index), this.length - this.position);
+            System.arraycopy(this.blockBuffer.array(), index, b, off + read, count);
+            read += count;
+            this.position += count;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, this.length - this.position));
+        this.position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, this.length - this.position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        this.mark = this.position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        this.position = this.mark;
+    }
+
+    /**
+     * Generates the block holding the position unless it is already loaded.
+     *
+     * @return The index of the position within the block buffer.
+     */
+    private int load(long position) {
+        long blockStart = position - position % DataGenerator.BLOCK_SIZE;
+        if (blockStart != this.loadedBlock) {
+            this.blockBuffer.clear();
+            this.blockBuffer.limit((int) Math.min(DataGenerator.BLOCK_SIZE, this.length - blockStart));
+            DataGenerator.generate(this.blockBuffer, this.content, this.seed, blockStart);
+            this.loadedBlock = blockStart;
+        }
+        return (int) (position - blockStart);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The gzip content coding, which any HTTP client can decode, using the deflate implementation of the JDK.
+ */
+final class GzipCodec implements CompressionCodec {
+
+    static final String NAME = "gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int level;
+
+    /**
+     * Creates a codec which compresses at the fastest level. On text it runs several times faster than the default
+     * level of deflate for about a quarter more output, so compression keeps up with the transfer.
+     */
+    GzipCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Creates a codec which compresses at the given level.
+     *
+     * @param level The deflate level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION, or
+     *              Deflater.DEFAULT_COMPRESSION.
+     */
+    GzipCodec(int level) {
+        if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Level must be between 1 and 9, or -1 for the default level.");
+        }
+        this.level = level;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Deflate falls back to stored blocks of at most 16383 bytes, each with a 5 byte header, when the data doesn't
+     * compress, and gzip adds a 10 byte header and an 8 byte trailer.
+     */
+    @Override
+    public int getMaxCompressedLength(int length) {
+        return length + 5 * (length / 16383 + 1) + 18;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream output) throws IOException {
+        return new GZIPOutputStream(output, BUFFER_SIZE) {
+            {
+                this.def.setLevel(GzipCodec.this.level);
+            }
+        };
+    }
+
+    @Override
+    public InputStream decompress(InputStream input) throws IOException {
+        return new GZIPInputStream(new PeekingInputStream(input), BUFFER_SIZE);
+    }
+
+    /**
+     * GZIPInputStream only looks for another member after a trailer if available() says there are more bytes, and
+     * until Java 23 stops early when the end of a member falls where a buffered stream has none left. Reading ahead
+     * by one byte makes available() answer whether the stream has ended.
+     */
+    private static final class PeekingInputStream extends PushbackInputStream {
+
+        PeekingInputStream(InputStream input) {
+            super(input, 1);
+        }
+
+        @Override
+        public int available() throws IOException {
+            int available = super.available();
+            if (available > 0) {
+                return available;
+            }
+
+            int next = read();
+            if (next < 0) {
+                return 0;
+            }
+            unread(next);
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RetryContext;
+import com.microsoft.azure.storage.RetryExponentialRetry;
+import com.microsoft.azure.storage.RetryInfo;
+import com.microsoft.azure.storage.RetryPolicy;
+import com.microsoft.azure.storage.RetryPolicyFactory;
+import com.microsoft.azure.storage.SendingRequestEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.FileRequestOptions;
+
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads ranges with hedging: a range request which takes longer than most recent ones gets a duplicate, and
+ * whichever of the two answers first is used.
+ *
+ * The threshold is a percentile of the latencies of the last few hundred range requests, so it follows the service
+ * as it gets faster or slower. Hedges are paid for from a budget which grows by a fixed fraction of a hedge with every
+ * request, so they never exceed that fraction of the requests however slow the service gets. The losing request is
+ * cancelled by closing its connection, and it is not retried.
+ *
+ * The reader's threads only wait for and issue hedges. The first request of each range runs on the caller's thread.
+ */
+class HedgedRangeReader implements AutoCloseable {
+
+    static final double DEFAULT_PERCENTILE = 95;
+
+    static final double DEFAULT_BUDGET = 0.05;
+
+    /**
+     * The number of recent latencies the threshold is computed from.
+     */
+    static final int LATENCY_WINDOW = 256;
+
+    /**
+     * The number of latencies needed before any request is hedged.
+     */
+    static final int MIN_SAMPLES = 32;
+
+    private static final int MAX_BURST = 8;
+
+    private static final int PRIMARY_WON = 1;
+    private static final int HEDGE_WON = 2;
+
+    private final double percentile;
+    private final double budget;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService hedgeExecutor;
+
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long samples;
+    private long thresholdNanos = Long.MAX_VALUE;
+    private double tokens;
+    private volatile boolean closed;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * Creates a reader which hedges requests slower than the 95th percentile, for at most 5% of the requests.
+     */
+    HedgedRangeReader() {
+        this(DEFAULT_PERCENTILE, DEFAULT_BUDGET);
+    }
+
+    /**
+     * Creates a reader.
+     *
+     * @param percentile The percentile of recent latency after which a request is hedged, between 0 and 100.
+     * @param budget The largest fraction of requests which may be hedged, between 0 and 1.
+     */
+    HedgedRangeReader(double percentile, double budget) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("The percentile must be between 0 and 100.");
+        }
+        if (budget < 0 || budget > 1) {
+            throw new IllegalArgumentException("The budget must be between 0 and 1.");
+        }
+
+        this.percentile = percentile;
+        this.budget = budget;
+        ThreadFactory daemons = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hedged-range-reader-" + this.count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemons);
+        this.hedgeExecutor = Executors.newCachedThreadPool(daemons);
+    }
+
+    /**
+     * Downloads a range of the file into the buffer, hedging the request if it is slow.
+     *
+     * @param file The file to read.
+     * @param offset The offset of the range.
+     * @param length The length of the range.
+     * @param buffer The buffer to read into, from its start.
+     * @param accessCondition The condition both requests are sent with. May be null.
+     * @return The number of bytes read.
+     *
+     * @throws StorageException
+     * @throws IllegalStateException If the reader was closed.
+     */
+    int downloadRange(final CloudFile file, final long offset, final long length, byte[] buffer, final AccessCondition accessCondition) throws StorageException {
+        if (this.closed) {
+            throw closedException(null);
+        }
+        this.requests.incrementAndGet();
+        final long threshold = earnBudgetAndGetThreshold();
+        final AtomicInteger winner = new AtomicInteger();
+        final Attempt primary = new Attempt(file);
+        final Attempt[] hedge = new Attempt[1];
+        final CountDownLatch hedgeDone = new CountDownLatch(1);
+
+        Runnable startHedge = new Runnable() {
+            @Override
+            public void run() {
+                boolean started = false;
+                try {
+                    if (winner.get() != 0 || closed || !spendBudget()) {
+                        return;
+                    }
+
+                    final Attempt attempt = new Attempt(file);
+                    synchronized (hedge) {
+                        if (winner.get() != 0) {
+                            return;
+                        }
+                        hedge[0] = attempt;
+                    }
+                    hedgeExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                attempt.read(offset, length, new byte[(int) length], accessCondition);
+                                if (winner.compareAndSet(0, HEDGE_WON)) {
+                                    primary.abort();
+                                }
+                            }
+                            catch (StorageException | RuntimeException e) {
+                                attempt.failure = e;
+                            }
+                            finally {
+                                hedgeDone.countDown();
+                            }
+                        }
+                    });
+                    started = true;
+                    hedges.incrementAndGet();
+                }
+                finally {
+                    // Nothing else counts the latch down once the hedge isn't running, and the caller may wait on it
+                    if (!started) {
+                        hedgeDone.countDown();
+                    }
+                }
+            }
+        };
+
+        ScheduledFuture<?> hedgeTimer;
+        try {
+            hedgeTimer = threshold == Long.MAX_VALUE ? null : this.timer.schedule(startHedge, threshold, TimeUnit.NANOSECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            throw closedException(e);
+        }
+
+        long start = System.nanoTime();
+        try {
+            int read = primary.read(offset, length, buffer, accessCondition);
+            if (winner.compareAndSet(0, PRIMARY_WON) || winner.get() == PRIMARY_WON) {
+                recordLatency(System.nanoTime() - start);
+            }
+            return read;
+        }
+        catch (StorageException | RuntimeException e) {
+            // Aborting a request can surface from the SDK as a runtime exception rather than a storage exception
+            if (hedgeTimer == null || hedgeTimer.cancel(false)) {
+                throw e;
+            }
+
+            // The hedge was started, or at least considered, so its outcome decides
+            awaitUninterruptibly(hedgeDone);
+            Attempt attempt;
+            synchronized (hedge) {
+                attempt = hedge[0];
+            }
+            if (attempt == null || attempt.failure != null || attempt.read < 0) {
+                throw e;
+            }
+
+            this.hedgesWon.incrementAndGet();
+            recordLatency(System.nanoTime() - start);
+            System.arraycopy(attempt.buffer, 0, buffer, 0, attempt.read);
+            return attempt.read;
+        }
+        finally {
+            winner.compareAndSet(0, PRIMARY_WON);
+            if (hedgeTimer != null) {
+                hedgeTimer.cancel(false);
+            }
+            synchronized (hedge) {
+                if (hedge[0] != null && winner.get() == PRIMARY_WON) {
+                    hedge[0].abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of ranges downloaded.
+     */
+    long getRequestCount() {
+        return this.requests.get();
+    }
+
+    /**
+     * @return The number of ranges for which a duplicate request was sent.
+     */
+    long getHedgeCount() {
+        return this.hedges.get();
+    }
+
+    /**
+     * @return The number of ranges for which the duplicate request answered first.
+     */
+    long getHedgeWonCount() {
+        return this.hedgesWon.get();
+    }
+
+    /**
+     * @return The latency after which a request is currently hedged, in milliseconds, or infinity before enough samples.
+     */
+    synchronized double getThresholdMillis() {
+        return this.thresholdNanos == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : this.thresholdNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d ranges, %d hedged (%.1f%%), %d hedges won, threshold %.1f ms",
+                getRequestCount(), getHedgeCount(), 100.0 * getHedgeCount() / Math.max(getRequestCount(), 1), getHedgeWonCount(), getThresholdMillis());
+    }
+
+    /**
+     * Stops the reader's threads. Downloads in progress start no more hedges, and later ones fail.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.timer.shutdownNow();
+        this.hedgeExecutor.shutdownNow();
+    }
+
+    private synchronized long earnBudgetAndGetThreshold() {
+        this.tokens = Math.min(MAX_BURST, this.tokens + this.budget);
+        return this.thresholdNanos;
+    }
+
+    private synchronized boolean spendBudget() {
+        if (this.tokens < 1) {
+            return false;
+        }
+        this.tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Records a latency and recomputes the threshold every few samples from the recent window.
+     */
+    private synchronized void recordLatency(long nanos) {
+        this.latencies[(int) (this.samples++ % LATENCY_WINDOW)] = nanos;
+        if (this.samples >= MIN_SAMPLES && this.samples % (MIN_SAMPLES / 4) == 0) {
+            long[] window = Arrays.copyOf(this.latencies, (int) Math.min(this.samples, LATENCY_WINDOW));
+            Arrays.sort(window);
+            this.thresholdNanos = window[Math.min(window.length - 1, (int) Math.ceil(window.length * this.percentile / 100) - 1)];
+        }
+    }
+
+    private static IllegalStateException closedException(Throwable cause) {
+        return new IllegalStateException("The hedged range reader was closed.", cause);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One request for a range, which can be aborted from another thread by closing its connection.
+     */
+    private static final class Attempt {
+
+        private final CloudFile file;
+        private final OperationContext opContext = new OperationContext();
+        private final FileRequestOptions options = new FileRequestOptions();
+        private volatile boolean aborted;
+        private volatile HttpURLConnection connection;
+        private volatile Exception failure;
+        private volatile byte[] buffer;
+        private volatile int read = -1;
+
+        Attempt(CloudFile file) {
+            this.file = file;
+            this.opContext.getSendingRequestEventHandler().addListener(new StorageEvent<SendingRequestEvent>() {
+                @Override
+                public void eventOccurred(SendingRequestEvent eventArg) {
+                    connection = (HttpURLConnection) eventArg.getConnectionObject();
+                }
+            });
+
+            RetryPolicyFactory retryPolicyFactory = file.getServiceClient().getDefaultRequestOptions().getRetryPolicyFactory();
+            this.options.setRetryPolicyFactory(new AbortableRetry(retryPolicyFactory != null ? retryPolicyFactory : new RetryExponentialRetry()));
+        }
+
+        int read(long offset, long length, byte[] buffer, AccessCondition accessCondition) throws StorageException {
+            this.buffer = buffer;
+            this.read = this.file.downloadRangeToByteArray(offset, length, buffer, 0, accessCondition, this.options, this.opContext);
+            return this.read;
+        }
+
+        void abort() {
+            this.aborted = true;
+            HttpURLConnection current = this.connection;
+            if (current != null) {
+                current.disconnect();
+            }
+        }
+
+        /**
+         * The client's retry policy, except that an aborted attempt is never retried.
+         */
+        private final class AbortableRetry extends RetryPolicy {
+
+            private final RetryPolicyFactory factory;
+            private final RetryPolicy policy;
+
+            AbortableRetry(RetryPolicyFactory factory) {
+                this(factory, null);
+            }
+
+            private AbortableRetry(RetryPolicyFactory factory, RetryPolicy policy) {
+                this.factory = factory;
+                this.policy = policy;
+            }
+
+            @Override
+            public RetryPolicy createInstance(OperationContext opContext) {
+                return new AbortableRetry(this.factory, this.factory.createInstance(opContext));
+            }
+
+            @Override
+            public RetryInfo evaluate(RetryContext retryContext, OperationContext operationContext) {
+                return aborted || this.policy == null ? null : this.policy.evaluate(retryContext, operationContext);
+            }
+        }
+    }
+}
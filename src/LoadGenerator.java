@@ -0,0 +1,511 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RetryExponentialRetry;
+import com.microsoft.azure.storage.RetryingEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.CloudFileClient;
+import com.microsoft.azure.storage.file.CloudFileDirectory;
+import com.microsoft.azure.storage.file.CloudFileShare;
+import com.microsoft.azure.storage.file.CopyState;
+import com.microsoft.azure.storage.file.CopyStatus;
+import com.microsoft.azure.storage.file.ListFileItem;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Replays the operations of the samples as a weighted random mix, from many concurrent workers, and reports
+ * the throughput and latency percentiles of every kind of operation.
+ *
+ * By default it runs against an in-process FileServiceStandIn, which can be slowed down with injected latency,
+ * a bandwidth limit and 503 throttling to approximate a real deployment. Run it with
+ * mvn -Ploadtest compile exec:java and the load.* system properties described in main.
+ *
+ * Uploaded content is generated on the fly by GeneratedInputStream, so neither the local disk nor the heap limit
+ * the file size or the throughput.
+ */
+class LoadGenerator {
+
+    /**
+     * The operations of the mix.
+     */
+    enum Operation {
+        /** Creates a share and deletes it again. */
+        CREATE_DELETE_SHARE,
+        /** Uploads a whole file in one call, replacing it. */
+        UPLOAD,
+        /** Writes one range of an existing file. */
+        RANGED_UPLOAD,
+        /** Lists the root directory of the test share. */
+        LIST,
+        /**
+         * Copies a file within the test share on the server and waits for the copy to finish. The latency runs
+         * until the copy scheduler sees the copy end, so a copy which outlives its start request adds at least the
+         * first poll interval; compare it with earlier COPY rows rather than with single-request operations.
+         */
+        COPY,
+        /**
+         * Downloads the seed file to a local file with parallel range requests, which are hedged when the run has a
+         * hedged reader.
+         */
+        DOWNLOAD,
+        /** Reads the properties and metadata of a file. */
+        GET_PROPERTIES,
+        /** Replaces the metadata of a file. */
+        SET_METADATA
+    }
+
+    static final String DEFAULT_MIX = "CREATE_DELETE_SHARE=5,UPLOAD=15,RANGED_UPLOAD=30,LIST=10,COPY=5,DOWNLOAD=10,GET_PROPERTIES=25,SET_METADATA=10";
+
+    /**
+     * The number of range requests a DOWNLOAD keeps in flight.
+     */
+    static final int DOWNLOAD_CONCURRENCY = 4;
+
+    private final CloudFileClient fileClient;
+    private final int workers;
+    private final Map<Operation, Integer> mix;
+    private final long fileSize;
+    private final int rangeSize;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final ParallelFileTransfer downloadTransfer;
+
+    /**
+     * Creates a load generator whose workers all keep one operation in flight.
+     *
+     * @see #LoadGenerator(CloudFileClient, int, Map, long, int, AdaptiveConcurrencyLimiter)
+     */
+    LoadGenerator(CloudFileClient fileClient, int workers, Map<Operation, Integer> mix, long fileSize, int rangeSize) {
+        this(fileClient, workers, mix, fileSize, rangeSize, null);
+    }
+
+    /**
+     * Creates a load generator.
+     *
+     * @param fileClient The client to run the operations with.
+     * @param workers The number of concurrent workers, each running one operation at a time.
+     * @param mix The relative weight of every operation. Operations without a weight are not run.
+     * @param fileSize The size of the files uploaded, copied and written to.
+     * @param rangeSize The size of the ranges written by RANGED_UPLOAD. It must not exceed the file size.
+     * @param limiter Holds each operation to its adaptive limit, so fewer workers than started may be busy. May be null.
+     */
+    LoadGenerator(CloudFileClient fileClient, int workers, Map<Operation, Integer> mix, long fileSize, int rangeSize, AdaptiveConcurrencyLimiter limiter) {
+        this(fileClient, workers, mix, fileSize, rangeSize, limiter, null);
+    }
+
+    /**
+     * Creates a load generator whose downloads may be hedged.
+     *
+     * @param fileClient The client to run the operations with.
+     * @param workers The number of concurrent workers, each running one operation at a time.
+     * @param mix The relative weight of every operation. Operations without a weight are not run.
+     * @param fileSize The size of the files uploaded, copied, written to and downloaded.
+     * @param rangeSize The size of the ranges written by RANGED_UPLOAD and read by DOWNLOAD. It must not exceed the file size.
+     * @param limiter Holds each operation to its adaptive limit, so fewer workers than started may be busy. May be null.
+     * @param hedgedReader The reader which hedges the range requests of DOWNLOAD, or null to download without hedging.
+     */
+    LoadGenerator(CloudFileClient fileClient, int workers, Map<Operation, Integer> mix, long fileSize, int rangeSize,
+            AdaptiveConcurrencyLimiter limiter, HedgedRangeReader hedgedReader) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("The number of workers must be positive.");
+        }
+        if (rangeSize <= 0 || rangeSize > fileSize || rangeSize > ParallelFileTransfer.MAX_RANGE_SIZE) {
+            throw new IllegalArgumentException("The range size must be positive, at most 4 MB and at most the file size.");
+        }
+        int totalWeight = 0;
+        for (int weight : mix.values()) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("The weights of the mix must not be negative.");
+            }
+            totalWeight += weight;
+        }
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("The mix must contain at least one operation.");
+        }
+
+        this.fileClient = fileClient;
+        this.workers = workers;
+        this.mix = new EnumMap<>(mix);
+        this.fileSize = fileSize;
+        this.rangeSize = rangeSize;
+        this.limiter = limiter;
+        this.downloadTransfer = new ParallelFileTransfer(rangeSize, DOWNLOAD_CONCURRENCY, null, hedgedReader);
+    }
+
+    /**
+     * Parses a mix of the form "UPLOAD=20,LIST=5".
+     *
+     * @param mix The mix.
+     * @return The weight of every operation in the mix.
+     */
+    static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(String.format("The mix entry \"%s\" is not of the form OPERATION=weight.", entry));
+            }
+            weights.put(Operation.valueOf(parts[0].trim().toUpperCase()), Integer.valueOf(parts[1].trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * Creates a test share, runs the mix until the duration has passed and deletes the share again.
+     *
+     * @param duration How long to generate load.
+     * @param unit The unit of the duration.
+     * @return The results of the run.
+     *
+     * @throws Exception
+     */
+    Result run(long duration, TimeUnit unit) throws Exception {
+
+        final Operation[] schedule = schedule();
+        final Result result = new Result(this.workers);
+        final StorageEvent<RetryingEvent> retryListener = new StorageEvent<RetryingEvent>() {
+            @Override
+            public void eventOccurred(RetryingEvent eventArg) {
+                result.retries.incrementAndGet();
+            }
+        };
+
+        final CloudFileShare share = this.fileClient.getShareReference(DataGenerator.createRandomName("loadtest"));
+        final ExecutorService executor = Executors.newFixedThreadPool(this.workers);
+        final CopyScheduler copyScheduler = new CopyScheduler(this.workers);
+        OperationContext.getGlobalRetryingEventHandler().addListener(retryListener);
+        try {
+            share.create();
+            share.getRootDirectoryReference().getFileReference("seed").upload(new GeneratedInputStream(this.fileSize, DataGenerator.Content.RANDOM, -1), this.fileSize);
+
+            final long start = System.nanoTime();
+            final long deadline = start + unit.toNanos(duration);
+            List<Future<?>> running = new ArrayList<>();
+            for (int i = 0; i < this.workers; i++) {
+                final Worker worker = new Worker(i, share, copyScheduler);
+                running.add(executor.submit(() -> {
+                    worker.prepare();
+                    while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                        Operation operation = schedule[ThreadLocalRandom.current().nextInt(schedule.length)];
+                        if (this.limiter != null) {
+                            this.limiter.acquire();
+                        }
+                        long operationStart = System.nanoTime();
+                        try {
+                            worker.execute(operation);
+                            result.latencies.get(operation).record(System.nanoTime() - operationStart);
+                        }
+                        catch (Exception e) {
+                            result.failures.get(operation).incrementAndGet();
+                            result.firstFailure.compareAndSet(null, e);
+                        }
+                        finally {
+                            if (this.limiter != null) {
+                                this.limiter.release();
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> worker : running) {
+                try {
+                    worker.get();
+                }
+                catch (ExecutionException e) {
+                    // A worker which could not prepare its files stops; the others keep going
+                    result.firstFailure.compareAndSet(null, e.getCause());
+                }
+            }
+            result.elapsedNanos = System.nanoTime() - start;
+        }
+        finally {
+            OperationContext.getGlobalRetryingEventHandler().removeListener(retryListener);
+            copyScheduler.close();
+            executor.shutdownNow();
+            share.deleteIfExists();
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the operations repeated according to their weights, so a uniform pick follows the mix.
+     */
+    private Operation[] schedule() {
+        List<Operation> schedule = new ArrayList<>();
+        for (Map.Entry<Operation, Integer> entry : this.mix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                schedule.add(entry.getKey());
+            }
+        }
+        return schedule.toArray(new Operation[0]);
+    }
+
+    /**
+     * The state of one worker. References are not shared between workers because they carry mutable properties.
+     */
+    private final class Worker {
+
+        private final int index;
+        private final CloudFileShare share;
+        private final CopyScheduler copyScheduler;
+        private CloudFileDirectory root;
+        private CloudFile seed;
+        private CloudFile own;
+        private CloudFile copy;
+        private File download;
+        private long iteration;
+
+        Worker(int index, CloudFileShare share, CopyScheduler copyScheduler) {
+            this.index = index;
+            this.share = share;
+            this.copyScheduler = copyScheduler;
+        }
+
+        void prepare() throws Exception {
+            CloudFileShare share = fileClient.getShareReference(this.share.getName());
+            this.root = share.getRootDirectoryReference();
+            this.seed = this.root.getFileReference("seed");
+            this.own = this.root.getFileReference("worker" + this.index);
+            this.copy = this.root.getFileReference("copy" + this.index);
+            this.own.upload(new GeneratedInputStream(fileSize, DataGenerator.Content.RANDOM, this.index), fileSize);
+            this.download = File.createTempFile("loadtest-", ".download");
+            this.download.deleteOnExit();
+        }
+
+        void execute(Operation operation) throws Exception {
+            switch (operation) {
+                case CREATE_DELETE_SHARE:
+                    CloudFileShare share = fileClient.getShareReference(DataGenerator.createRandomName("loadtest"));
+                    share.create();
+                    share.delete();
+                    break;
+                case UPLOAD:
+                    this.own.upload(new GeneratedInputStream(fileSize, DataGenerator.Content.RANDOM, this.index), fileSize);
+                    break;
+                case RANGED_UPLOAD:
+                    long offset = ThreadLocalRandom.current().nextLong(fileSize / rangeSize) * rangeSize;
+                    this.own.uploadRange(new GeneratedInputStream(offset, rangeSize, DataGenerator.Content.RANDOM, this.index), offset, rangeSize);
+                    break;
+                case LIST:
+                    for (ListFileItem ignored : this.root.listFilesAndDirectories()) {
+                        // Listing is lazy, so walk every page
+                    }
+                    break;
+                case COPY:
+                    CopyState state = this.copyScheduler.startCopy(this.seed, this.copy).get();
+                    if (state.getStatus() != CopyStatus.SUCCESS) {
+                        throw new IllegalStateException("The copy finished with status " + state.getStatus());
+                    }
+                    break;
+                case DOWNLOAD:
+                    downloadTransfer.download(this.seed, this.download);
+                    break;
+                case GET_PROPERTIES:
+                    this.seed.downloadAttributes();
+                    break;
+                case SET_METADATA:
+                    this.own.getMetadata().put("iteration", Long.toString(++this.iteration));
+                    this.own.uploadMetadata();
+                    break;
+                default:
+                    throw new IllegalArgumentException(operation.name());
+            }
+        }
+    }
+
+    /**
+     * The latencies and failures of a run, per operation.
+     */
+    static final class Result {
+
+        private final int workers;
+        private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+        private final Map<Operation, AtomicLong> failures = new EnumMap<>(Operation.class);
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        private volatile long elapsedNanos;
+
+        private Result(int workers) {
+            this.workers = workers;
+            for (Operation operation : Operation.values()) {
+                this.latencies.put(operation, new LatencyHistogram());
+                this.failures.put(operation, new AtomicLong());
+            }
+        }
+
+        /**
+         * @return The latencies of the successful runs of the operation.
+         */
+        LatencyHistogram getLatencies(Operation operation) {
+            return this.latencies.get(operation);
+        }
+
+        /**
+         * @return The number of runs of the operation which failed, after any retries.
+         */
+        long getFailures(Operation operation) {
+            return this.failures.get(operation).get();
+        }
+
+        /**
+         * @return The number of requests the client retried.
+         */
+        long getRetries() {
+            return this.retries.get();
+        }
+
+        /**
+         * @return The first failure, or null if nothing failed.
+         */
+        Throwable getFirstFailure() {
+            return this.firstFailure.get();
+        }
+
+        /**
+         * @return The duration of the run in nanoseconds.
+         */
+        long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(this.elapsedNanos / 1e9, 1e-9);
+            StringBuilder report = new StringBuilder(String.format("%d workers for %.1f s, %d retries%n", this.workers, seconds, getRetries()));
+            report.append(String.format("%-20s %10s %10s %8s %10s %10s %10s %10s%n", "operation", "ops", "ops/s", "failed", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+            LatencyHistogram total = new LatencyHistogram();
+            long totalFailures = 0;
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram histogram = this.latencies.get(operation);
+                long failed = this.failures.get(operation).get();
+                if (histogram.getCount() == 0 && failed == 0) {
+                    continue;
+                }
+                appendRow(report, operation.name(), histogram, failed, seconds);
+                total.add(histogram);
+                totalFailures += failed;
+            }
+            appendRow(report, "total", total, totalFailures, seconds);
+            return report.toString();
+        }
+
+        private static void appendRow(StringBuilder report, String name, LatencyHistogram histogram, long failed, double seconds) {
+            report.append(String.format("%-20s %10d %10.1f %8d %10.2f %10.2f %10.2f %10.2f%n",
+                    name,
+                    histogram.getCount(),
+                    histogram.getCount() / seconds,
+                    failed,
+                    histogram.getPercentileMillis(50),
+                    histogram.getPercentileMillis(99),
+                    histogram.getPercentileMillis(99.9),
+                    histogram.getMaxNanos() / 1e6));
+        }
+    }
+
+    /**
+     * Runs a load test configured by system properties:
+     * load.workers (16), load.durationSeconds (30), load.mix (DEFAULT_MIX), load.fileSize (1048576),
+     * load.rangeSize (65536), load.retryBackoffMs (100), load.retryAttempts (3), and load.target, either
+     * "standin" (the default) or "account" to use the account of config.properties.
+     * Against the stand-in, load.latencyMs (0), load.jitterMs (0), load.bandwidthMBps (0, unlimited),
+     * load.throttleRate (0), and load.stragglerRate (0) with load.stragglerMs (0) shape the simulated service.
+     * With load.metrics=true the per-request client metrics are printed after the result, and with
+     * load.adaptive=true the workers are held to the adaptive concurrency limit of the client, which is printed as
+     * well. With load.hedge=true the range requests of DOWNLOAD are hedged, so two runs with stragglers, one with
+     * and one without hedging, compare the DOWNLOAD p99.
+     *
+     * @param args No input args are expected from users.
+     */
+    public static void main(String[] args) throws Exception {
+        int workers = Integer.getInteger("load.workers", 16);
+        int durationSeconds = Integer.getInteger("load.durationSeconds", 30);
+        Map<Operation, Integer> mix = parseMix(System.getProperty("load.mix", DEFAULT_MIX));
+        long fileSize = Long.getLong("load.fileSize", 1024 * 1024);
+        int rangeSize = Integer.getInteger("load.rangeSize", 64 * 1024);
+        boolean useStandIn = !"account".equalsIgnoreCase(System.getProperty("load.target", "standin"));
+        ClientMetrics metrics = Boolean.getBoolean("load.metrics") ? ClientMetrics.enable() : null;
+        boolean adaptive = Boolean.getBoolean("load.adaptive");
+        HedgedRangeReader hedgedReader = Boolean.getBoolean("load.hedge") ? new HedgedRangeReader() : null;
+
+        FileServiceStandIn standIn = null;
+        try {
+            CloudFileClient fileClient;
+            if (useStandIn) {
+                standIn = FileServiceStandIn.start();
+                standIn.setLatency(Long.getLong("load.latencyMs", 0), Long.getLong("load.jitterMs", 0), TimeUnit.MILLISECONDS);
+                standIn.setBandwidth((long) (Double.parseDouble(System.getProperty("load.bandwidthMBps", "0")) * 1024 * 1024));
+                standIn.setThrottleRate(Double.parseDouble(System.getProperty("load.throttleRate", "0")));
+                standIn.setStragglers(Double.parseDouble(System.getProperty("load.stragglerRate", "0")), Long.getLong("load.stragglerMs", 0), TimeUnit.MILLISECONDS);
+                fileClient = standIn.createFileClient();
+            }
+            else {
+                // A client of its own, since the retry policy set below must not leak into the shared client
+                fileClient = FileClientProvider.createFileClient();
+            }
+            // The policy's default minimum backoff of 3 s would dwarf every other latency, so it starts at the delta
+            int retryBackoffMs = Integer.getInteger("load.retryBackoffMs", 100);
+            fileClient.getDefaultRequestOptions().setRetryPolicyFactory(new RetryExponentialRetry(
+                    retryBackoffMs, retryBackoffMs, RetryExponentialRetry.DEFAULT_MAX_BACKOFF, Integer.getInteger("load.retryAttempts", 3)));
+
+            System.out.println(String.format("Running %s with %d workers for %d s against %s.", mix, workers, durationSeconds, useStandIn ? "the stand-in" : "the account"));
+            AdaptiveConcurrencyLimiter limiter = adaptive ? AdaptiveConcurrencyLimiter.forClient(fileClient) : null;
+            Result result = new LoadGenerator(fileClient, workers, mix, fileSize, rangeSize, limiter, hedgedReader).run(durationSeconds, TimeUnit.SECONDS);
+            System.out.println(result);
+            if (limiter != null) {
+                System.out.println("Adaptive concurrency: " + limiter);
+            }
+            if (hedgedReader != null) {
+                System.out.println("Hedged downloads: " + hedgedReader);
+            }
+            if (metrics != null) {
+                System.out.println(metrics.snapshot());
+            }
+            if (standIn != null) {
+                System.out.println(String.format("The stand-in served %d requests and throttled %d.", standIn.getRequestCount(), standIn.getThrottledCount()));
+            }
+            if (result.getFirstFailure() != null) {
+                System.out.println("First failure:");
+                PrintHelper.printException(result.getFirstFailure());
+            }
+        }
+        finally {
+            if (hedgedReader != null) {
+                hedgedReader.close();
+            }
+            if (standIn != null) {
+                standIn.close();
+            }
+        }
+    }
+}
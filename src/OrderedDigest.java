@@ -0,0 +1,207 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Folds the ranges of a parallel transfer into the MD5 of the whole content while the ranges complete in any order.
+ * MD5 can't be combined from the digests of the parts, so the ranges are hashed one after the other in offset order:
+ * the worker which completes the next range hashes it straight from its own buffer, followed by any later ranges
+ * which are already waiting. A worker which completes a range ahead of its turn copies it aside and moves on to its
+ * next range, up to a bound on the bytes held aside; past that bound it waits for its turn. Only one thread hashes
+ * at a time and never while holding the lock, so the other workers keep transferring. Gaps between the ranges, such
+ * as the unallocated regions of a sparse file, are hashed as the zeros they read back as.
+ */
+final class OrderedDigest {
+
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private final MessageDigest digest;
+    private final long maxPendingBytes;
+    private final Map<Integer, Range> pending = new HashMap<>();
+    private final ArrayDeque<byte[]> spareBuffers = new ArrayDeque<>();
+
+    private int nextIndex;
+    private long position;
+    private long pendingBytes;
+    private boolean folding;
+    private boolean aborted;
+
+    /**
+     * Creates a digest of an empty content.
+     *
+     * @param maxPendingBytes The largest number of bytes held aside for ranges completed ahead of their turn.
+     */
+    OrderedDigest(long maxPendingBytes) {
+        try {
+            this.digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Adds a completed range. The range is hashed before this returns if it is next in order, and otherwise copied
+     * aside, so the buffer can be reused as soon as this returns. Does nothing once the digest has been aborted.
+     *
+     * @param index The index of the range in the transfer plan, whose ranges are sorted by offset.
+     * @param offset The offset of the range in the content.
+     * @param buffer The buffer holding the range.
+     * @param length The length of the range.
+     *
+     * @throws InterruptedException
+     */
+    void update(int index, long offset, byte[] buffer, int length) throws InterruptedException {
+        Range range = null;
+        synchronized (this) {
+            while (true) {
+                if (this.aborted) {
+                    return;
+                }
+                if (index == this.nextIndex && !this.folding) {
+                    this.folding = true;
+                    break;
+                }
+                if (this.pendingBytes + length <= this.maxPendingBytes) {
+                    this.pendingBytes += length;
+                    range = new Range(offset, takeBuffer(length), length);
+                    break;
+                }
+                wait();
+            }
+        }
+
+        if (range == null) {
+            hash(offset, buffer, length);
+            synchronized (this) {
+                this.nextIndex++;
+            }
+        }
+        else {
+            System.arraycopy(buffer, 0, range.bytes, 0, length);
+            synchronized (this) {
+                this.pending.put(index, range);
+                if (this.folding || this.aborted || !this.pending.containsKey(this.nextIndex)) {
+                    return;
+                }
+                this.folding = true;
+            }
+        }
+
+        drain();
+    }
+
+    /**
+     * Releases the workers waiting for their turn, when the transfer has failed and the digest won't be finished.
+     */
+    synchronized void abort() {
+        this.aborted = true;
+        this.pending.clear();
+        this.spareBuffers.clear();
+        notifyAll();
+    }
+
+    /**
+     * Completes the digest once every range has been added.
+     *
+     * @param length The length of the content. Any gap after the last range is hashed as zeros.
+     * @return The Base64 encoded MD5 of the content, as used by the Content-MD5 property.
+     */
+    synchronized String finish(long length) {
+        if (this.folding || !this.pending.isEmpty()) {
+            throw new IllegalStateException("Not every range has been added to the digest.");
+        }
+        hash(length, null, 0);
+        return Base64.getEncoder().encodeToString(this.digest.digest());
+    }
+
+    /**
+     * Hashes the ranges held aside for as long as the next one is among them, then hands over the turn.
+     * Called by the thread which set folding.
+     */
+    private void drain() {
+        while (true) {
+            Range range;
+            synchronized (this) {
+                range = this.aborted ? null : this.pending.remove(this.nextIndex);
+                if (range == null) {
+                    this.folding = false;
+                    notifyAll();
+                    return;
+                }
+            }
+
+            hash(range.offset, range.bytes, range.length);
+            synchronized (this) {
+                this.nextIndex++;
+                this.pendingBytes -= range.length;
+                if (!this.aborted) {
+                    this.spareBuffers.push(range.bytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes the zeros between the end of the previous range and the given offset, then the range itself.
+     * Only the thread which set folding calls this, so the digest and position need no lock of their own.
+     */
+    private void hash(long offset, byte[] buffer, int length) {
+        if (offset < this.position) {
+            throw new IllegalStateException(String.format("Range at offset %d overlaps the content already hashed up to %d.", offset, this.position));
+        }
+        while (this.position < offset) {
+            int zeros = (int) Math.min(ZEROS.length, offset - this.position);
+            this.digest.update(ZEROS, 0, zeros);
+            this.position += zeros;
+        }
+        if (length > 0) {
+            this.digest.update(buffer, 0, length);
+            this.position += length;
+        }
+    }
+
+    /**
+     * Reuses a buffer of a range already hashed when it is large enough, so ranges held aside don't allocate.
+     */
+    private byte[] takeBuffer(int length) {
+        byte[] buffer = this.spareBuffers.poll();
+        return buffer != null && buffer.length >= length ? buffer : new byte[length];
+    }
+
+    /**
+     * A range completed ahead of its turn.
+     */
+    private static final class Range {
+
+        final long offset;
+        final byte[] bytes;
+        final int length;
+
+        Range(long offset, byte[] bytes, int length) {
+            this.offset = offset;
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,633 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.Constants;
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.FileRange;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transfers files by splitting them into ranges which are moved concurrently by a bounded pool of workers.
+ * The MD5 of the whole file is computed from the ranges as they pass through the workers' buffers, so uploads
+ * store it as the file's Content-MD5 and downloads verify it without reading the data a second time. Per range
+ * MD5s are checked by the SDK when the client's request options enable transactional MD5.
+ */
+class ParallelFileTransfer {
+
+    /**
+     * The largest range accepted by a single Put Range request.
+     */
+    static final int MAX_RANGE_SIZE = 4 * 1024 * 1024;
+
+    static final int DEFAULT_CONCURRENCY = 8;
+
+    /**
+     * The granularity at which sparse uploads look for all-zero regions.
+     */
+    static final int DEFAULT_ZERO_BLOCK_SIZE = 64 * 1024;
+
+    private final int rangeSize;
+    private final int concurrency;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final HedgedRangeReader hedgedReader;
+
+    /**
+     * Creates a transfer using the largest range size and the default concurrency.
+     */
+    ParallelFileTransfer() {
+        this(MAX_RANGE_SIZE, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Creates a transfer with the given range size and concurrency.
+     *
+     * @param rangeSize The size of each range in bytes, at most 4 MB.
+     * @param concurrency The maximum number of range requests in flight.
+     */
+    ParallelFileTransfer(int rangeSize, int concurrency) {
+        this(rangeSize, concurrency, null);
+    }
+
+    /**
+     * Creates a transfer whose range requests are also held to the limit of an adaptive limiter.
+     *
+     * @param rangeSize The size of each range in bytes, at most 4 MB.
+     * @param concurrency The maximum number of range requests in flight, which bounds the limiter's limit.
+     * @param limiter The limiter shared with the other operations against the service, or null for a fixed concurrency.
+     */
+    ParallelFileTransfer(int rangeSize, int concurrency, AdaptiveConcurrencyLimiter limiter) {
+        this(rangeSize, concurrency, limiter, null);
+    }
+
+    /**
+     * Creates a transfer whose downloads hedge slow range requests.
+     *
+     * @param rangeSize The size of each range in bytes, at most 4 MB.
+     * @param concurrency The maximum number of range requests in flight, not counting hedges.
+     * @param limiter The limiter shared with the other operations against the service, or null for a fixed concurrency.
+     * @param hedgedReader The reader which downloads the ranges, or null to download without hedging.
+     */
+    ParallelFileTransfer(int rangeSize, int concurrency, AdaptiveConcurrencyLimiter limiter, HedgedRangeReader hedgedReader) {
+        if (rangeSize <= 0 || rangeSize > MAX_RANGE_SIZE) {
+            throw new IllegalArgumentException(String.format("Range size must be between 1 and %d bytes.", MAX_RANGE_SIZE));
+        }
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Concurrency must be positive.");
+        }
+
+        this.rangeSize = rangeSize;
+        this.concurrency = concurrency;
+        this.limiter = limiter;
+        this.hedgedReader = hedgedReader;
+    }
+
+    int getRangeSize() {
+        return this.rangeSize;
+    }
+
+    int getConcurrency() {
+        return this.concurrency;
+    }
+
+    /**
+     * @return The limiter the range requests are held to, or null for a fixed concurrency.
+     */
+    AdaptiveConcurrencyLimiter getLimiter() {
+        return this.limiter;
+    }
+
+    /**
+     * Splits the span [0, length) into consecutive ranges of at most rangeSize bytes.
+     *
+     * @param length The total number of bytes.
+     * @param rangeSize The maximum size of each range.
+     * @return The ranges, with inclusive end offsets as used by FileRange.
+     */
+    static List<FileRange> planRanges(long length, int rangeSize) {
+        List<FileRange> ranges = new ArrayList<>((int) ((length + rangeSize - 1) / rangeSize));
+        for (long offset = 0; offset < length; offset += rangeSize) {
+            ranges.add(new FileRange(offset, Math.min(offset + rangeSize, length) - 1));
+        }
+        return ranges;
+    }
+
+    /**
+     * Splits each of the given ranges into consecutive ranges of at most rangeSize bytes.
+     *
+     * @param ranges The ranges to split, with inclusive end offsets.
+     * @param rangeSize The maximum size of each resulting range.
+     * @return The split ranges, in the same order.
+     */
+    static List<FileRange> splitRanges(List<FileRange> ranges, int rangeSize) {
+        List<FileRange> split = new ArrayList<>();
+        for (FileRange range : ranges) {
+            for (long offset = range.getStartOffset(); offset <= range.getEndOffset(); offset += rangeSize) {
+                split.add(new FileRange(offset, Math.min(offset + rangeSize - 1, range.getEndOffset())));
+            }
+        }
+        return split;
+    }
+
+    /**
+     * Uploads a local file by creating the cloud file once and then uploading its ranges in parallel.
+     *
+     * @param file The cloud file to upload to.
+     * @param source The local file to upload.
+     * @return The statistics of the transfer.
+     *
+     * @throws StorageException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    TransferStatistics upload(final CloudFile file, File source) throws StorageException, IOException, InterruptedException {
+
+        long length = source.length();
+        file.create(length);
+
+        OrderedDigest digest = newDigest();
+        TransferStatistics statistics;
+        try (final FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            statistics = transferRanges(planRanges(length, this.rangeSize), new RangeOperation() {
+                @Override
+                public long execute(FileRange range, byte[] buffer) throws Exception {
+                    int rangeLength = (int) (range.getEndOffset() - range.getStartOffset() + 1);
+                    readFully(channel, range.getStartOffset(), buffer, rangeLength);
+                    file.uploadRange(new ByteArrayInputStream(buffer, 0, rangeLength), range.getStartOffset(), rangeLength);
+                    return rangeLength;
+                }
+            }, digest);
+        }
+
+        storeContentMD5(file, digest.finish(length));
+        return statistics;
+    }
+
+    /**
+     * Uploads a local file while skipping its all-zero blocks, which stay unallocated in the cloud file.
+     *
+     * @see #uploadSparse(CloudFile, File, int)
+     */
+    TransferStatistics uploadSparse(CloudFile file, File source) throws StorageException, IOException, InterruptedException {
+        return uploadSparse(file, source, DEFAULT_ZERO_BLOCK_SIZE);
+    }
+
+    /**
+     * Uploads a local file while skipping its all-zero blocks. Each worker reads one range into its buffer,
+     * scans it block by block and sends only the runs of non-zero blocks, so memory stays fixed regardless
+     * of the file size. If the cloud file already exists it is resized rather than recreated, and runs of
+     * zero blocks which overlap previously written ranges are cleared so they read back as zeros.
+     * The skipped blocks are still part of the Content-MD5 stored for the file.
+     *
+     * @param file The cloud file to upload to.
+     * @param source The local file to upload.
+     * @param blockSize The size of the blocks which are checked for zeros.
+     * @return The statistics of the transfer. Only the bytes actually sent are counted.
+     *
+     * @throws StorageException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    TransferStatistics uploadSparse(final CloudFile file, File source, final int blockSize) throws StorageException, IOException, InterruptedException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive.");
+        }
+
+        long length = source.length();
+        final List<FileRange> existingRanges;
+        if (file.exists()) {
+            if (file.getProperties().getLength() != length) {
+                file.resize(length);
+            }
+            existingRanges = file.downloadFileRanges();
+        }
+        else {
+            file.create(length);
+            existingRanges = new ArrayList<>();
+        }
+
+        OrderedDigest digest = newDigest();
+        TransferStatistics statistics;
+        try (final FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            statistics = transferRanges(planRanges(length, this.rangeSize), new RangeOperation() {
+                @Override
+                public long execute(FileRange range, byte[] buffer) throws Exception {
+                    int rangeLength = (int) (range.getEndOffset() - range.getStartOffset() + 1);
+                    readFully(channel, range.getStartOffset(), buffer, rangeLength);
+
+                    long sent = 0;
+                    int runStart = 0;
+                    boolean runIsZero = isZero(buffer, 0, Math.min(blockSize, rangeLength));
+                    for (int block = blockSize; block < rangeLength; block += blockSize) {
+                        boolean blockIsZero = isZero(buffer, block, Math.min(blockSize, rangeLength - block));
+                        if (blockIsZero != runIsZero) {
+                            sent += writeRun(range.getStartOffset(), buffer, runStart, block - runStart, runIsZero);
+                            runStart = block;
+                            runIsZero = blockIsZero;
+                        }
+                    }
+                    sent += writeRun(range.getStartOffset(), buffer, runStart, rangeLength - runStart, runIsZero);
+                    return sent;
+                }
+
+                private long writeRun(long rangeOffset, byte[] buffer, int start, int runLength, boolean zero) throws StorageException, IOException {
+                    long offset = rangeOffset + start;
+                    if (!zero) {
+                        file.uploadRange(new ByteArrayInputStream(buffer, start, runLength), offset, runLength);
+                        return runLength;
+                    }
+                    if (overlaps(existingRanges, offset, offset + runLength - 1)) {
+                        file.clearRange(offset, runLength);
+                    }
+                    return 0;
+                }
+            }, digest);
+        }
+
+        storeContentMD5(file, digest.finish(length));
+        return statistics;
+    }
+
+    /**
+     * Downloads a cloud file by reading its length from the service and fetching its ranges in parallel.
+     * Each range is written straight to its offset in a preallocated local file, so no reassembly is needed.
+     * Every range request is conditioned on the ETag seen up front, so a file that changes mid-download fails
+     * the transfer instead of producing a mix of versions. If the file has a Content-MD5, the downloaded content
+     * is checked against it unless the client's request options disable MD5 validation.
+     *
+     * @param file The cloud file to download.
+     * @param destination The local file to write to. It is created or truncated to the cloud file's length.
+     * @return The statistics of the transfer.
+     *
+     * @throws StorageException If a range request fails, or with the Md5Mismatch error code if the content
+     *                          doesn't match the file's Content-MD5.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    TransferStatistics download(final CloudFile file, File destination) throws StorageException, IOException, InterruptedException {
+
+        file.downloadAttributes();
+        long length = file.getProperties().getLength();
+        final AccessCondition sameVersion = AccessCondition.generateIfMatchCondition(file.getProperties().getEtag());
+        String expectedMD5 = file.getProperties().getContentMD5();
+
+        OrderedDigest digest = isVerified(file, expectedMD5) ? newDigest() : null;
+        TransferStatistics statistics;
+        preallocate(destination, length);
+        try (FileChannel channel = FileChannel.open(destination.toPath(), StandardOpenOption.WRITE)) {
+            statistics = transferRanges(planRanges(length, this.rangeSize), downloadOperation(file, channel, sameVersion), digest);
+        }
+
+        if (digest != null) {
+            verifyContentMD5(file, expectedMD5, digest.finish(length));
+        }
+        return statistics;
+    }
+
+    /**
+     * Downloads only the populated ranges of a sparse cloud file. The valid ranges are queried first and
+     * fetched in parallel, while the gaps between them are left as holes in a sparse local file, so the
+     * bytes moved are proportional to the data actually stored rather than to the nominal file length.
+     * If the file has a Content-MD5 and the client's request options don't disable MD5 validation, the gaps are
+     * hashed as zeros to check the content against it, which takes time proportional to the file's full length
+     * rather than to its stored data. Files without a Content-MD5 are not hashed at all.
+     *
+     * @param file The cloud file to download.
+     * @param destination The local file to write to. Any existing file is replaced.
+     * @return The statistics of the transfer.
+     *
+     * @throws StorageException If a range request fails, or with the Md5Mismatch error code if the content
+     *                          doesn't match the file's Content-MD5.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    TransferStatistics downloadSparse(CloudFile file, File destination) throws StorageException, IOException, InterruptedException {
+
+        file.downloadAttributes();
+        long length = file.getProperties().getLength();
+        AccessCondition sameVersion = AccessCondition.generateIfMatchCondition(file.getProperties().getEtag());
+        String expectedMD5 = file.getProperties().getContentMD5();
+        List<FileRange> validRanges = file.downloadFileRanges(sameVersion, null, null);
+
+        // Without an MD5 to check, nothing reads the holes, which keeps the cost proportional to the stored data
+        OrderedDigest digest = isVerified(file, expectedMD5) ? newDigest() : null;
+        TransferStatistics statistics;
+        createSparse(destination, length);
+        try (FileChannel channel = FileChannel.open(destination.toPath(), StandardOpenOption.WRITE)) {
+            statistics = transferRanges(splitRanges(validRanges, this.rangeSize), downloadOperation(file, channel, sameVersion), digest);
+        }
+
+        if (digest != null) {
+            verifyContentMD5(file, expectedMD5, digest.finish(length));
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns a digest which may hold aside one completed range per worker while it waits for its turn.
+     */
+    OrderedDigest newDigest() {
+        return new OrderedDigest((long) this.concurrency * this.rangeSize);
+    }
+
+    /**
+     * Stores the MD5 of the uploaded content as the file's Content-MD5, keeping its other properties. Nothing is
+     * written if the properties last read from the service already carry that MD5, so an upload which changed
+     * nothing leaves the file's ETag alone.
+     */
+    static void storeContentMD5(CloudFile file, String contentMD5) throws StorageException {
+        if (contentMD5.equals(file.getProperties().getContentMD5())) {
+            return;
+        }
+        file.getProperties().setContentMD5(contentMD5);
+        file.uploadProperties();
+    }
+
+    /**
+     * Tells whether a download of the file is checked against the expected Content-MD5, so the content is worth
+     * hashing.
+     */
+    static boolean isVerified(CloudFile file, String expected) {
+        return expected != null && !Boolean.TRUE.equals(file.getServiceClient().getDefaultRequestOptions().getDisableContentMD5Validation());
+    }
+
+    /**
+     * Checks the MD5 of the downloaded content against the Content-MD5 read with the file's attributes before the
+     * transfer, since range responses may replace it. Files without a Content-MD5, and clients which disable MD5
+     * validation, are not checked.
+     */
+    static void verifyContentMD5(CloudFile file, String expected, String contentMD5) throws StorageException {
+        if (!isVerified(file, expected)) {
+            return;
+        }
+        if (!expected.equals(contentMD5)) {
+            throw new StorageException(StorageErrorCodeStrings.MD5_MISMATCH,
+                    String.format("The MD5 of the downloaded content is %s, but the file's Content-MD5 is %s.", contentMD5, expected),
+                    Constants.HeaderConstants.HTTP_UNUSED_306, null, null);
+        }
+    }
+
+    /**
+     * Returns the operation which downloads a range of the file, hedged if the transfer has a hedged reader,
+     * and writes it at the same offset of the channel.
+     */
+    private RangeOperation downloadOperation(final CloudFile file, final FileChannel channel, final AccessCondition accessCondition) {
+        return new RangeOperation() {
+            @Override
+            public long execute(FileRange range, byte[] buffer) throws Exception {
+                long rangeLength = range.getEndOffset() - range.getStartOffset() + 1;
+                int read = hedgedReader != null
+                        ? hedgedReader.downloadRange(file, range.getStartOffset(), rangeLength, buffer, accessCondition)
+                        : file.downloadRangeToByteArray(range.getStartOffset(), rangeLength, buffer, 0, accessCondition, null, null);
+                writeFully(channel, range.getStartOffset(), buffer, read);
+                return read;
+            }
+        };
+    }
+
+    /**
+     * The work performed for a single range, given a worker-owned buffer of rangeSize bytes.
+     */
+    interface RangeOperation {
+
+        /**
+         * @return The number of bytes moved over the wire for the range.
+         */
+        long execute(FileRange range, byte[] buffer) throws Exception;
+    }
+
+    /**
+     * Runs the operation for every range on a bounded pool of workers, each reusing its own buffer.
+     *
+     * @see #transferRanges(List, RangeOperation, OrderedDigest)
+     */
+    TransferStatistics transferRanges(List<FileRange> ranges, RangeOperation operation) throws StorageException, IOException, InterruptedException {
+        return transferRanges(ranges, operation, null);
+    }
+
+    /**
+     * Runs the operation for every range on a bounded pool of workers, each reusing its own buffer.
+     * With a limiter, each range also holds one of its permits while it runs.
+     * With a digest, the content of each range is added to it from the buffer once the operation is done,
+     * so the operation must leave the whole range in the buffer.
+     * The first failure stops the remaining workers from picking up new ranges and is rethrown.
+     *
+     * @param ranges The ranges to transfer, sorted by offset.
+     * @param operation The operation to execute for each range.
+     * @param digest The digest of the whole content, or null.
+     * @return The statistics of the transfer.
+     *
+     * @throws StorageException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    TransferStatistics transferRanges(final List<FileRange> ranges, final RangeOperation operation, final OrderedDigest digest) throws StorageException, IOException, InterruptedException {
+
+        final TransferStatistics statistics = new TransferStatistics(ranges.size());
+        final AtomicInteger nextRange = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        int workers = Math.min(this.concurrency, ranges.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(workers, 1));
+        try {
+            List<Future<Void>> results = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        byte[] buffer = new byte[rangeSize];
+                        int index;
+                        while (!failed.get() && (index = nextRange.getAndIncrement()) < ranges.size()) {
+                            FileRange range = ranges.get(index);
+                            if (limiter != null) {
+                                limiter.acquire();
+                            }
+                            long start = System.nanoTime();
+                            try {
+                                long bytes = operation.execute(range, buffer);
+                                statistics.recordRange(index, bytes, System.nanoTime() - start);
+                            }
+                            catch (Exception e) {
+                                failed.set(true);
+                                if (digest != null) {
+                                    digest.abort();
+                                }
+                                throw e;
+                            }
+                            finally {
+                                if (limiter != null) {
+                                    limiter.release();
+                                }
+                            }
+
+                            if (digest != null) {
+                                try {
+                                    digest.update(index, range.getStartOffset(), buffer, (int) (range.getEndOffset() - range.getStartOffset() + 1));
+                                }
+                                catch (InterruptedException e) {
+                                    failed.set(true);
+                                    digest.abort();
+                                    throw e;
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                }
+                catch (ExecutionException e) {
+                    rethrow(e.getCause());
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        statistics.complete();
+        return statistics;
+    }
+
+    /**
+     * Checks whether the given region of the buffer contains only zero bytes.
+     */
+    static boolean isZero(byte[] buffer, int offset, int length) {
+        ByteBuffer words = ByteBuffer.wrap(buffer, offset, length);
+        while (words.remaining() >= 8) {
+            if (words.getLong() != 0) {
+                return false;
+            }
+        }
+        while (words.hasRemaining()) {
+            if (words.get() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether [start, end] overlaps any of the ranges, which are sorted by offset as returned by the service.
+     */
+    static boolean overlaps(List<FileRange> sortedRanges, long start, long end) {
+        int low = 0;
+        int high = sortedRanges.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            FileRange range = sortedRanges.get(middle);
+            if (range.getEndOffset() < start) {
+                low = middle + 1;
+            }
+            else if (range.getStartOffset() > end) {
+                high = middle - 1;
+            }
+            else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rethrows the failure of a worker as one of the checked exceptions of the transfer methods.
+     */
+    static void rethrow(Throwable t) throws StorageException, IOException, InterruptedException {
+        if (t instanceof StorageException) {
+            throw (StorageException) t;
+        }
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof InterruptedException) {
+            throw (InterruptedException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IOException(t);
+    }
+
+    /**
+     * Reads exactly length bytes from the channel at the given position using positional reads.
+     */
+    static void readFully(FileChannel channel, long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position + target.position());
+            if (read < 0) {
+                throw new EOFException(String.format("Unexpected end of file at offset %d.", position + target.position()));
+            }
+        }
+    }
+
+    /**
+     * Creates or truncates the file and sets its length, so ranges can be written at any offset.
+     */
+    static void preallocate(File file, long length) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(length);
+        }
+    }
+
+    /**
+     * Replaces the file with an empty sparse file of the given length, so unwritten regions stay as holes.
+     */
+    static void createSparse(File file, long length) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SPARSE).close();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(length);
+        }
+    }
+
+    /**
+     * Writes length bytes of the buffer to the channel at the given position using positional writes.
+     */
+    static void writeFully(FileChannel channel, long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(buffer, 0, length);
+        while (source.hasRemaining()) {
+            channel.write(source, position + source.position());
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFileDirectory;
+import com.microsoft.azure.storage.file.ListFileItem;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * Lists a directory page by page with a bounded number of pages fetched ahead of the consumer.
+ *
+ * A background thread issues the segmented listing calls. The queue holds prefetchPages - 1 pages, and the fetcher
+ * blocks with one more page in hand once it is full, so at most prefetchPages pages are fetched ahead and a slow
+ * consumer holds back the listing instead of letting it fill the heap. Counting the page the consumer is
+ * processing, at most (prefetchPages + 1) * pageSize items are held at any time.
+ *
+ * After a page has been fully processed, getResumeMarker() returns the continuation marker of the page after it.
+ * Saving that marker lets a listing interrupted by a crash resume where it left off instead of starting over.
+ */
+final class SegmentedDirectoryListing implements AutoCloseable {
+
+    /**
+     * The largest page the service returns for a single listing call.
+     */
+    static final int DEFAULT_PAGE_SIZE = 5000;
+
+    static final int DEFAULT_PREFETCH_PAGES = 2;
+
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> pages;
+    private final Thread fetcher;
+    private String resumeMarker;
+    private boolean finished;
+
+    private SegmentedDirectoryListing(final CloudFileDirectory directory, String resumeMarker, final int pageSize, int prefetchPages) {
+        // With a single page ahead, the fetcher's own page is the prefetch and pages are handed over directly
+        this.pages = prefetchPages == 1 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(prefetchPages - 1);
+        this.resumeMarker = resumeMarker;
+
+        final ResultContinuation initialToken = toContinuation(resumeMarker);
+        this.fetcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fetch(directory, initialToken, pageSize);
+            }
+        }, "listing-" + directory.getName());
+        this.fetcher.setDaemon(true);
+    }
+
+    /**
+     * Starts listing the directory from the beginning with the default page size and prefetch depth.
+     *
+     * @param directory The directory to list.
+     * @return The listing, which must be closed when no longer needed.
+     */
+    static SegmentedDirectoryListing start(CloudFileDirectory directory) {
+        return start(directory, null, DEFAULT_PAGE_SIZE, DEFAULT_PREFETCH_PAGES);
+    }
+
+    /**
+     * Starts listing the directory.
+     *
+     * @param directory The directory to list.
+     * @param resumeMarker A marker saved from getResumeMarker() of an earlier listing, or null to start from the beginning.
+     * @param pageSize The maximum number of items per listing call.
+     * @param prefetchPages The maximum number of pages fetched ahead of the consumer.
+     * @return The listing, which must be closed when no longer needed.
+     */
+    static SegmentedDirectoryListing start(CloudFileDirectory directory, String resumeMarker, int pageSize, int prefetchPages) {
+        if (pageSize <= 0 || prefetchPages <= 0) {
+            throw new IllegalArgumentException("Page size and prefetch depth must be positive.");
+        }
+
+        SegmentedDirectoryListing listing = new SegmentedDirectoryListing(directory, resumeMarker, pageSize, prefetchPages);
+        listing.fetcher.start();
+        return listing;
+    }
+
+    /**
+     * Returns the next page of items, waiting for it to be fetched if needed.
+     *
+     * @return The items of the next page, or null once the listing is complete.
+     *
+     * @throws StorageException
+     * @throws RuntimeException Any other failure of the listing, rethrown as is.
+     * @throws InterruptedException
+     */
+    List<ListFileItem> nextPage() throws StorageException, InterruptedException {
+        if (this.finished) {
+            return null;
+        }
+
+        Object next = this.pages.take();
+        if (next == END) {
+            this.finished = true;
+            return null;
+        }
+        if (next instanceof Throwable) {
+            this.finished = true;
+            if (next instanceof StorageException) {
+                throw (StorageException) next;
+            }
+            if (next instanceof Error) {
+                throw (Error) next;
+            }
+            throw (RuntimeException) next;
+        }
+
+        Page page = (Page) next;
+        this.resumeMarker = page.nextMarker;
+        return page.items;
+    }
+
+    /**
+     * Returns the marker to resume from once the page last returned by nextPage() has been processed.
+     *
+     * @return The marker of the following page, or null if there are no more pages.
+     */
+    String getResumeMarker() {
+        return this.resumeMarker;
+    }
+
+    /**
+     * Stops fetching further pages.
+     */
+    @Override
+    public void close() {
+        this.finished = true;
+        this.fetcher.interrupt();
+    }
+
+    private void fetch(CloudFileDirectory directory, ResultContinuation token, int pageSize) {
+        try {
+            try {
+                do {
+                    ResultSegment<ListFileItem> segment = directory.listFilesAndDirectoriesSegmented(pageSize, token, null, null);
+                    token = segment.getContinuationToken();
+                    boolean hasMore = token != null && token.hasContinuation();
+                    this.pages.put(new Page(segment.getResults(), hasMore ? token.getNextMarker() : null));
+                } while (token != null && token.hasContinuation());
+                this.pages.put(END);
+            }
+            catch (StorageException | RuntimeException | Error e) {
+                // Anything the fetcher dies of is handed to the consumer, which would otherwise wait forever
+                this.pages.put(e);
+            }
+        }
+        catch (InterruptedException e) {
+            // The listing was closed
+        }
+    }
+
+    private static ResultContinuation toContinuation(String marker) {
+        if (marker == null) {
+            return null;
+        }
+
+        ResultContinuation token = new ResultContinuation();
+        token.setContinuationType(ResultContinuationType.FILE);
+        token.setNextMarker(marker);
+        return token;
+    }
+
+    /**
+     * A page of items and the marker of the page after it.
+     */
+    private static final class Page {
+
+        private final List<ListFileItem> items;
+        private final String nextMarker;
+
+        Page(List<ListFileItem> items, String nextMarker) {
+            this.items = items;
+            this.nextMarker = nextMarker;
+        }
+    }
+}
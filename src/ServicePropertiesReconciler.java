@@ -0,0 +1,374 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.CorsHttpMethods;
+import com.microsoft.azure.storage.CorsProperties;
+import com.microsoft.azure.storage.CorsRule;
+import com.microsoft.azure.storage.MetricsProperties;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFileClient;
+import com.microsoft.azure.storage.file.FileServiceProperties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings the service properties of many accounts to a desired state with as few round trips as possible.
+ *
+ * Each account is reconciled with at most one get, one compare and one set. The last properties seen for an account
+ * are cached, so while the cache is younger than the maximum age the get is skipped too, and an account which already
+ * matches costs nothing. The comparison is structural: metrics compare by level, retention and version, and CORS rules
+ * compare in order, each by its origins, methods and headers as sets and by its max age. Only when something differs
+ * are the properties uploaded, with the differing sections replaced and the others kept as they were.
+ *
+ * A section which is null in the desired properties is left as it is. Accounts are identified by their file endpoint
+ * and each is reconciled by one thread at a time.
+ */
+class ServicePropertiesReconciler {
+
+    static final int DEFAULT_MAX_CONCURRENT_ACCOUNTS = 16;
+
+    private final long maxAgeNanos;
+    private final int maxConcurrentAccounts;
+    private final Map<String, CachedProperties> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a reconciler.
+     *
+     * @param maxAge How long cached properties are trusted without a get. Use 0 to get them on every reconciliation,
+     *               which also catches changes made by others.
+     * @param unit The unit of the maximum age.
+     */
+    ServicePropertiesReconciler(long maxAge, TimeUnit unit) {
+        this(maxAge, unit, DEFAULT_MAX_CONCURRENT_ACCOUNTS);
+    }
+
+    /**
+     * Creates a reconciler.
+     *
+     * @param maxAge How long cached properties are trusted without a get.
+     * @param unit The unit of the maximum age.
+     * @param maxConcurrentAccounts The maximum number of accounts reconciled at the same time.
+     */
+    ServicePropertiesReconciler(long maxAge, TimeUnit unit, int maxConcurrentAccounts) {
+        if (maxAge < 0) {
+            throw new IllegalArgumentException("The maximum age must not be negative.");
+        }
+        if (maxConcurrentAccounts <= 0) {
+            throw new IllegalArgumentException("The maximum number of concurrent accounts must be positive.");
+        }
+
+        this.maxAgeNanos = unit.toNanos(maxAge);
+        this.maxConcurrentAccounts = maxConcurrentAccounts;
+    }
+
+    /**
+     * Brings the service properties of one account to the desired state.
+     *
+     * @param client The client of the account.
+     * @param desired The desired properties. Null sections are left as they are.
+     * @return What was found and done.
+     *
+     * @throws StorageException
+     */
+    Result reconcile(CloudFileClient client, FileServiceProperties desired) throws StorageException {
+        String account = client.getEndpoint().toString();
+        CachedProperties cached = this.cache.computeIfAbsent(account, key -> new CachedProperties());
+
+        synchronized (cached) {
+            boolean downloaded = refresh(client, cached);
+            List<String> differences = diff(cached.properties, desired);
+            if (differences.isEmpty()) {
+                return new Result(account, downloaded, false, differences);
+            }
+
+            FileServiceProperties merged = new FileServiceProperties();
+            merged.setHourMetrics(copy(desired.getHourMetrics() != null ? desired.getHourMetrics() : cached.properties.getHourMetrics()));
+            merged.setMinuteMetrics(copy(desired.getMinuteMetrics() != null ? desired.getMinuteMetrics() : cached.properties.getMinuteMetrics()));
+            merged.setCors(copy(desired.getCors() != null ? desired.getCors() : cached.properties.getCors()));
+            try {
+                client.uploadServiceProperties(merged);
+            }
+            catch (StorageException e) {
+                // The state of the account is unknown now
+                cached.properties = null;
+                throw e;
+            }
+            cached.properties = merged;
+            return new Result(account, downloaded, true, differences);
+        }
+    }
+
+    /**
+     * Returns the current service properties of an account, from the cache while it is younger than the maximum age.
+     *
+     * @param client The client of the account.
+     * @return A copy of the properties, which the caller may change.
+     *
+     * @throws StorageException
+     */
+    FileServiceProperties getProperties(CloudFileClient client) throws StorageException {
+        CachedProperties cached = this.cache.computeIfAbsent(client.getEndpoint().toString(), key -> new CachedProperties());
+        synchronized (cached) {
+            refresh(client, cached);
+            return copy(cached.properties);
+        }
+    }
+
+    /**
+     * Reconciles many accounts concurrently. A failure of one account does not stop the others.
+     *
+     * @param desiredByClient The desired properties of the account of each client.
+     * @return The result of every account, in the order of the map, with the failure of any account which failed.
+     *
+     * @throws InterruptedException
+     */
+    List<Result> reconcileAll(Map<CloudFileClient, FileServiceProperties> desiredByClient) throws InterruptedException {
+        List<Result> results = new ArrayList<>();
+        if (desiredByClient.isEmpty()) {
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.maxConcurrentAccounts, desiredByClient.size()));
+        try {
+            Map<CloudFileClient, Future<Result>> futures = new LinkedHashMap<>();
+            for (final Map.Entry<CloudFileClient, FileServiceProperties> entry : desiredByClient.entrySet()) {
+                futures.put(entry.getKey(), executor.submit(() -> reconcile(entry.getKey(), entry.getValue())));
+            }
+
+            for (Map.Entry<CloudFileClient, Future<Result>> entry : futures.entrySet()) {
+                try {
+                    results.add(entry.getValue().get());
+                }
+                catch (ExecutionException e) {
+                    results.add(new Result(entry.getKey().getEndpoint().toString(), e.getCause()));
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Forgets the cached properties of all accounts, so the next reconciliation of each gets them again.
+     */
+    void invalidate() {
+        this.cache.clear();
+    }
+
+    /**
+     * Downloads the properties of the account unless the cached ones are young enough.
+     *
+     * @return Whether the properties were downloaded.
+     */
+    private boolean refresh(CloudFileClient client, CachedProperties cached) throws StorageException {
+        if (cached.properties != null && System.nanoTime() - cached.fetchedNanos <= this.maxAgeNanos) {
+            return false;
+        }
+
+        cached.properties = client.downloadServiceProperties();
+        cached.fetchedNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Lists the differences between the current and the desired properties, ignoring null desired sections.
+     *
+     * @param current The current properties.
+     * @param desired The desired properties.
+     * @return A description of every difference, empty if the current properties are as desired.
+     */
+    static List<String> diff(FileServiceProperties current, FileServiceProperties desired) {
+        List<String> differences = new ArrayList<>();
+        if (desired.getHourMetrics() != null) {
+            diffMetrics("hourMetrics", current.getHourMetrics(), desired.getHourMetrics(), differences);
+        }
+        if (desired.getMinuteMetrics() != null) {
+            diffMetrics("minuteMetrics", current.getMinuteMetrics(), desired.getMinuteMetrics(), differences);
+        }
+        if (desired.getCors() != null) {
+            List<CorsRule> currentRules = current.getCors() != null ? current.getCors().getCorsRules() : Collections.<CorsRule>emptyList();
+            List<CorsRule> desiredRules = desired.getCors().getCorsRules();
+            if (currentRules.size() != desiredRules.size()) {
+                differences.add(String.format("cors: %d rules -> %d rules", currentRules.size(), desiredRules.size()));
+            }
+            else {
+                for (int i = 0; i < desiredRules.size(); i++) {
+                    diffRule(String.format("cors[%d]", i), currentRules.get(i), desiredRules.get(i), differences);
+                }
+            }
+        }
+        return differences;
+    }
+
+    private static void diffMetrics(String name, MetricsProperties current, MetricsProperties desired, List<String> differences) {
+        if (current == null) {
+            differences.add(name + ": missing");
+            return;
+        }
+        diffValue(name + ".metricsLevel", current.getMetricsLevel(), desired.getMetricsLevel(), differences);
+        diffValue(name + ".retentionIntervalInDays", current.getRetentionIntervalInDays(), desired.getRetentionIntervalInDays(), differences);
+        diffValue(name + ".version", current.getVersion(), desired.getVersion(), differences);
+    }
+
+    private static void diffRule(String name, CorsRule current, CorsRule desired, List<String> differences) {
+        diffValue(name + ".allowedOrigins", new HashSet<>(current.getAllowedOrigins()), new HashSet<>(desired.getAllowedOrigins()), differences);
+        diffValue(name + ".allowedMethods", current.getAllowedMethods(), desired.getAllowedMethods(), differences);
+        diffValue(name + ".allowedHeaders", new HashSet<>(current.getAllowedHeaders()), new HashSet<>(desired.getAllowedHeaders()), differences);
+        diffValue(name + ".exposedHeaders", new HashSet<>(current.getExposedHeaders()), new HashSet<>(desired.getExposedHeaders()), differences);
+        diffValue(name + ".maxAgeInSeconds", current.getMaxAgeInSeconds(), desired.getMaxAgeInSeconds(), differences);
+    }
+
+    private static void diffValue(String name, Object current, Object desired, List<String> differences) {
+        if (!Objects.equals(current, desired)) {
+            differences.add(String.format("%s: %s -> %s", name, current, desired));
+        }
+    }
+
+    private static FileServiceProperties copy(FileServiceProperties properties) {
+        FileServiceProperties copy = new FileServiceProperties();
+        copy.setHourMetrics(copy(properties.getHourMetrics()));
+        copy.setMinuteMetrics(copy(properties.getMinuteMetrics()));
+        // No CORS section means no rules, which a caller can then add to or reconcile back to
+        copy.setCors(properties.getCors() != null ? copy(properties.getCors()) : new CorsProperties());
+        return copy;
+    }
+
+    private static MetricsProperties copy(MetricsProperties metrics) {
+        if (metrics == null) {
+            return null;
+        }
+
+        MetricsProperties copy = new MetricsProperties();
+        copy.setMetricsLevel(metrics.getMetricsLevel());
+        copy.setRetentionIntervalInDays(metrics.getRetentionIntervalInDays());
+        copy.setVersion(metrics.getVersion());
+        return copy;
+    }
+
+    private static CorsProperties copy(CorsProperties cors) {
+        if (cors == null) {
+            return null;
+        }
+
+        CorsProperties copy = new CorsProperties();
+        for (CorsRule rule : cors.getCorsRules()) {
+            CorsRule ruleCopy = new CorsRule();
+            ruleCopy.setAllowedOrigins(new ArrayList<>(rule.getAllowedOrigins()));
+            ruleCopy.setAllowedMethods(rule.getAllowedMethods().isEmpty() ? EnumSet.noneOf(CorsHttpMethods.class) : EnumSet.copyOf(rule.getAllowedMethods()));
+            ruleCopy.setAllowedHeaders(new ArrayList<>(rule.getAllowedHeaders()));
+            ruleCopy.setExposedHeaders(new ArrayList<>(rule.getExposedHeaders()));
+            ruleCopy.setMaxAgeInSeconds(rule.getMaxAgeInSeconds());
+            copy.getCorsRules().add(ruleCopy);
+        }
+        return copy;
+    }
+
+    /**
+     * The last properties seen for an account.
+     */
+    private static final class CachedProperties {
+        private FileServiceProperties properties;
+        private long fetchedNanos;
+    }
+
+    /**
+     * The outcome of reconciling one account.
+     */
+    static final class Result {
+
+        private final String account;
+        private final boolean downloaded;
+        private final boolean uploaded;
+        private final List<String> differences;
+        private final Throwable failure;
+
+        private Result(String account, boolean downloaded, boolean uploaded, List<String> differences) {
+            this.account = account;
+            this.downloaded = downloaded;
+            this.uploaded = uploaded;
+            this.differences = differences;
+            this.failure = null;
+        }
+
+        private Result(String account, Throwable failure) {
+            this.account = account;
+            this.downloaded = false;
+            this.uploaded = false;
+            this.differences = Collections.emptyList();
+            this.failure = failure;
+        }
+
+        /**
+         * @return The file endpoint of the account.
+         */
+        String getAccount() {
+            return this.account;
+        }
+
+        /**
+         * @return Whether the properties were downloaded rather than taken from the cache.
+         */
+        boolean isDownloaded() {
+            return this.downloaded;
+        }
+
+        /**
+         * @return Whether the properties differed and were uploaded.
+         */
+        boolean isUploaded() {
+            return this.uploaded;
+        }
+
+        /**
+         * @return The differences found, empty if the account was already as desired.
+         */
+        List<String> getDifferences() {
+            return this.differences;
+        }
+
+        /**
+         * @return The failure of the reconciliation, or null if it succeeded.
+         */
+        Throwable getFailure() {
+            return this.failure;
+        }
+
+        @Override
+        public String toString() {
+            if (this.failure != null) {
+                return String.format("%s: failed with %s", this.account, this.failure);
+            }
+            return String.format("%s: %s, %s%s", this.account,
+                    this.downloaded ? "downloaded" : "cached",
+                    this.uploaded ? "updated " : "up to date",
+                    this.uploaded ? this.differences : "");
+        }
+    }
+}
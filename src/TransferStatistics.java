@@ -0,0 +1,116 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and per-range latency collected during a ranged transfer.
+ */
+final class TransferStatistics {
+
+    private final long[] rangeLatencies;
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final long startNanos;
+    private volatile long endNanos;
+
+    /**
+     * Creates the statistics for a transfer of the given number of ranges and starts the clock.
+     *
+     * @param rangeCount The number of ranges the transfer is made of.
+     */
+    TransferStatistics(int rangeCount) {
+        this.rangeLatencies = new long[rangeCount];
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Records a completed range. Each range index is written by exactly one worker.
+     *
+     * @param rangeIndex The index of the range in the transfer plan.
+     * @param bytes The number of bytes moved for the range.
+     * @param latencyNanos The time taken by the range request.
+     */
+    void recordRange(int rangeIndex, long bytes, long latencyNanos) {
+        this.rangeLatencies[rangeIndex] = latencyNanos;
+        this.bytesTransferred.addAndGet(bytes);
+    }
+
+    /**
+     * Stops the clock for the transfer.
+     */
+    void complete() {
+        this.endNanos = System.nanoTime();
+    }
+
+    /**
+     * @return The number of ranges in the transfer.
+     */
+    int getRangeCount() {
+        return this.rangeLatencies.length;
+    }
+
+    /**
+     * @return The number of bytes moved over the wire.
+     */
+    long getBytesTransferred() {
+        return this.bytesTransferred.get();
+    }
+
+    /**
+     * @return The wall-clock duration of the transfer in nanoseconds.
+     */
+    long getElapsedNanos() {
+        return (this.endNanos != 0 ? this.endNanos : System.nanoTime()) - this.startNanos;
+    }
+
+    /**
+     * @return The transfer throughput in megabytes per second.
+     */
+    double getThroughputMBps() {
+        long elapsed = getElapsedNanos();
+        return elapsed == 0 ? 0 : (getBytesTransferred() / (1024.0 * 1024.0)) / (elapsed / 1e9);
+    }
+
+    /**
+     * Returns the range latency at the given percentile.
+     *
+     * @param percentile The percentile between 0 and 100.
+     * @return The latency in milliseconds.
+     */
+    double getRangeLatencyMillis(double percentile) {
+        if (this.rangeLatencies.length == 0) {
+            return 0;
+        }
+
+        long[] sorted = this.rangeLatencies.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d bytes in %d ranges, %.1f ms, %.2f MB/s, range latency p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+                getBytesTransferred(),
+                getRangeCount(),
+                getElapsedNanos() / 1e6,
+                getThroughputMBps(),
+                getRangeLatencyMillis(50),
+                getRangeLatencyMillis(99),
+                getRangeLatencyMillis(100));
+    }
+}
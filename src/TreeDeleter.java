@@ -0,0 +1,228 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.file.CloudFile;
+import com.microsoft.azure.storage.file.CloudFileDirectory;
+import com.microsoft.azure.storage.file.CloudFileShare;
+import com.microsoft.azure.storage.file.ListFileItem;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Deletes directory trees with many delete requests in flight.
+ *
+ * Files are deleted while the tree is still being walked. Directories can only be deleted once empty, so they are
+ * collected during the walk and deleted level by level afterwards, deepest first, with every directory of a level
+ * deleted concurrently. Items which are already gone, for example because another deleter removed them, are
+ * counted as skipped rather than failed.
+ */
+class TreeDeleter {
+
+    static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private final int maxInFlight;
+    private final DirectoryTreeWalker walker;
+
+    /**
+     * Creates a deleter with the default parallelism.
+     */
+    TreeDeleter() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Creates a deleter.
+     *
+     * @param maxInFlight The maximum number of delete requests in flight.
+     */
+    TreeDeleter(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("The maximum number of in-flight deletes must be positive.");
+        }
+
+        this.maxInFlight = maxInFlight;
+        this.walker = new DirectoryTreeWalker(Math.min(maxInFlight, DirectoryTreeWalker.DEFAULT_MAX_IN_FLIGHT_LISTINGS));
+    }
+
+    /**
+     * Deletes the directory and everything below it.
+     *
+     * @see #deleteContents(CloudFileDirectory, Consumer)
+     */
+    BulkProgress delete(CloudFileDirectory directory, Consumer<BulkProgress> listener) throws StorageException, InterruptedException {
+        BulkProgress progress = deleteContents(directory, listener);
+        if (progress.getFailedCount() == 0) {
+            progress.itemFound();
+            deleteItem(directory, progress);
+        }
+        progress.complete();
+        return progress;
+    }
+
+    /**
+     * Deletes everything below the directory, leaving the directory itself in place.
+     * Failures of individual items are counted in the progress rather than stopping the delete.
+     *
+     * @param directory The directory to empty.
+     * @param listener Called with the progress after each item, from worker threads. May be null.
+     * @return The final progress.
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    BulkProgress deleteContents(final CloudFileDirectory directory, final Consumer<BulkProgress> listener) throws StorageException, InterruptedException {
+
+        final BulkProgress progress = new BulkProgress();
+        final Semaphore permits = new Semaphore(this.maxInFlight);
+        final ConcurrentLinkedQueue<CloudFileDirectory> directories = new ConcurrentLinkedQueue<>();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(this.maxInFlight);
+        try {
+            // Delete the files as they are found and remember the directories for later
+            this.walker.walk(directory, item -> {
+                progress.itemFound();
+                if (item instanceof CloudFileDirectory) {
+                    directories.add((CloudFileDirectory) item);
+                    return;
+                }
+
+                permits.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        deleteItem(item, progress);
+                    }
+                    finally {
+                        permits.release();
+                        if (listener != null) {
+                            listener.accept(progress);
+                        }
+                    }
+                });
+            });
+            permits.acquire(this.maxInFlight);
+            permits.release(this.maxInFlight);
+
+            // Delete the directories deepest first, one level at a time
+            Map<Integer, List<CloudFileDirectory>> levels = new TreeMap<>(Collections.reverseOrder());
+            for (CloudFileDirectory child : directories) {
+                int depth = FilePathHelper.relativePath(directory, child).split("/").length;
+                levels.computeIfAbsent(depth, ignored -> new ArrayList<>()).add(child);
+            }
+            for (List<CloudFileDirectory> level : levels.values()) {
+                for (final CloudFileDirectory child : level) {
+                    permits.acquire();
+                    executor.execute(() -> {
+                        try {
+                            deleteItem(child, progress);
+                        }
+                        finally {
+                            permits.release();
+                            if (listener != null) {
+                                listener.accept(progress);
+                            }
+                        }
+                    });
+                }
+                permits.acquire(this.maxInFlight);
+                permits.release(this.maxInFlight);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        progress.complete();
+        return progress;
+    }
+
+    /**
+     * Deletes the shares which exist, all at the same time.
+     *
+     * @param shares The shares to delete.
+     * @return The shares which existed and were deleted.
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    static List<CloudFileShare> deleteSharesIfExist(Collection<CloudFileShare> shares) throws StorageException, InterruptedException {
+        List<CloudFileShare> deleted = new ArrayList<>();
+        if (shares.isEmpty()) {
+            return deleted;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(shares.size());
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (final CloudFileShare share : shares) {
+                results.add(executor.submit(() -> share.deleteIfExists()));
+            }
+
+            int index = 0;
+            for (CloudFileShare share : shares) {
+                try {
+                    if (results.get(index++).get()) {
+                        deleted.add(share);
+                    }
+                }
+                catch (ExecutionException e) {
+                    DirectoryTreeWalker.rethrow(e.getCause());
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes a single file or directory, treating one which is already gone as skipped.
+     */
+    private static void deleteItem(ListFileItem item, BulkProgress progress) {
+        try {
+            if (item instanceof CloudFile) {
+                CloudFile file = (CloudFile) item;
+                file.delete();
+                progress.itemCompleted(file.getProperties().getLength());
+            }
+            else {
+                ((CloudFileDirectory) item).delete();
+                progress.itemCompleted(0);
+            }
+        }
+        catch (StorageException e) {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                progress.itemSkipped();
+            }
+            else {
+                progress.itemFailed(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A sink which checks that what is written to it is the expected generated content, without storing it.
+ * Downloads can be written into it to measure throughput with no disk I/O and still prove the data is intact.
+ */
+final class VerifyingOutputStream extends OutputStream {
+
+    private final GeneratedInputStream expected;
+    private final long offset;
+    private final long length;
+    private final byte[] scratch = new byte[64 * 1024];
+    private long written;
+    private long firstMismatch = -1;
+
+    /**
+     * Creates a sink expecting the whole generated content.
+     *
+     * @param length The number of bytes expected.
+     * @param content The kind of content expected.
+     * @param seed The seed of the content expected.
+     */
+    VerifyingOutputStream(long length, DataGenerator.Content content, long seed) {
+        this(0, length, content, seed);
+    }
+
+    /**
+     * Creates a sink expecting part of the generated content, as written by a ranged download.
+     *
+     * @param offset The offset within the generated content of the first byte expected.
+     * @param length The number of bytes expected.
+     * @param content The kind of content expected.
+     * @param seed The seed of the content expected.
+     */
+    VerifyingOutputStream(long offset, long length, DataGenerator.Content content, long seed) {
+        this.expected = new GeneratedInputStream(offset, length, content, seed);
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        while (len > 0) {
+            int count = this.expected.read(this.scratch, 0, Math.min(len, this.scratch.length));
+            if (count < 0) {
+                // More bytes than expected; the length check reports it
+                this.written += len;
+                return;
+            }
+            if (this.firstMismatch < 0) {
+                for (int i = 0; i < count; i++) {
+                    if (this.scratch[i] != b[off + i]) {
+                        this.firstMismatch = this.offset + this.written + i;
+                        break;
+                    }
+                }
+            }
+            this.written += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * @return The number of bytes written so far.
+     */
+    long getBytesWritten() {
+        return this.written;
+    }
+
+    /**
+     * @return Whether exactly the expected bytes were written.
+     */
+    boolean isValid() {
+        return this.firstMismatch < 0 && this.written == this.length;
+    }
+
+    /**
+     * Checks that exactly the expected bytes were written.
+     *
+     * @throws IOException If a byte differed or the number of bytes was wrong.
+     */
+    void verify() throws IOException {
+        if (this.firstMismatch >= 0) {
+            throw new IOException(String.format("The content differs from the expected content at offset %d.", this.firstMismatch));
+        }
+        if (this.written != this.length) {
+            throw new IOException(String.format("%d bytes were written but %d were expected.", this.written, this.length));
+        }
+    }
+}